@@ -89,6 +89,17 @@
 		}
 	};
 
+	/* batched delivery; each entry is an [id, data] pair */
+	WebinosSocket.handleMessages = function(messages) {
+		for(var i = 0; i < messages.length; i++) {
+			try {
+				WebinosSocket.handleMessage(messages[i][0], messages[i][1]);
+			} catch(e) {
+				console.log('WebinosSocket: exception in message handler: ' + e);
+			}
+		}
+	};
+
 	WebinosSocket.prototype.send = function(data) {
 		switch(this.readyState) {
 		case -1: /* INITIALISED */
@@ -97,7 +108,8 @@
 			this.queuedMessages.push(data);
 			break;
 		case 1: /* OPEN */
-			exports.__webinos.send(this.id, data);
+			if(exports.__webinos.send(this.id, data) === false)
+				throw new Error('BufferFullError');
 			break;
 		case 2: /* CLOSING */
 		case 3: /* CLOSED */
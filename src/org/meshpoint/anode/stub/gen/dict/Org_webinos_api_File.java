@@ -4,14 +4,20 @@ package org.meshpoint.anode.stub.gen.dict;
 
 public class Org_webinos_api_File {
 
-	private static Object[] __args = new Object[0];
+	private static Object[] __args = new Object[3];
 
 	public static Object[] __getArgs() { return __args; }
 
 	public static void __import(org.webinos.api.File ob, Object[] vals) {
+		ob.fullPath = (String)vals[0];
+		ob.name = (String)vals[1];
+		ob.type = (String)vals[2];
 	}
 
 	public static Object[] __export(org.webinos.api.File ob) {
+		__args[0] = ob.fullPath;
+		__args[1] = ob.name;
+		__args[2] = ob.type;
 		return __args;
 	}
 
@@ -0,0 +1,24 @@
+/* This file has been automatically generated; do not edit */
+
+package org.meshpoint.anode.stub.gen.dict;
+
+public class Org_webinos_api_contact_ContactChanges {
+
+	private static Object[] __args = new Object[3];
+
+	public static Object[] __getArgs() { return __args; }
+
+	public static void __import(org.webinos.api.contact.ContactChanges ob, Object[] vals) {
+		ob.added = (String[])vals[0];
+		ob.removed = (String[])vals[1];
+		ob.updated = (String[])vals[2];
+	}
+
+	public static Object[] __export(org.webinos.api.contact.ContactChanges ob) {
+		__args[0] = ob.added;
+		__args[1] = ob.removed;
+		__args[2] = ob.updated;
+		return __args;
+	}
+
+}
@@ -0,0 +1,26 @@
+/* This file has been automatically generated; do not edit */
+
+package org.meshpoint.anode.stub.gen.dict;
+
+public class Org_webinos_api_messaging_MessageFindOptions {
+
+	private static Object[] __args = new Object[4];
+
+	public static Object[] __getArgs() { return __args; }
+
+	public static void __import(org.webinos.api.messaging.MessageFindOptions ob, Object[] vals) {
+		ob.ascending = (Boolean)vals[0];
+		ob.count = (Integer)vals[1];
+		ob.offset = (Integer)vals[2];
+		ob.pageSize = (Integer)vals[3];
+	}
+
+	public static Object[] __export(org.webinos.api.messaging.MessageFindOptions ob) {
+		__args[0] = ob.ascending;
+		__args[1] = ob.count;
+		__args[2] = ob.offset;
+		__args[3] = ob.pageSize;
+		return __args;
+	}
+
+}
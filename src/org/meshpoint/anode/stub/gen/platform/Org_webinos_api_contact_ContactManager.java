@@ -9,12 +9,37 @@ public class Org_webinos_api_contact_ContactManager {
 	public static Object[] __getArgs() { return __args; }
 
 	static Object __invoke(org.webinos.api.contact.ContactManager inst, int opIdx, Object[] args) {
-		return inst.find(
-			(java.util.HashMap<String, String>)args[0],
-			(org.webinos.api.contact.ContactFindCB)args[1],
-			(org.webinos.api.contact.ContactErrorCB)args[2],
-			(org.webinos.api.contact.ContactFindOptions)args[3]
-		);
+		Object result = null;
+		switch(opIdx) {
+		case 0: /* clearWatch */
+			inst.clearWatch(
+				((org.meshpoint.anode.js.JSValue)args[0]).longValue
+			);
+			break;
+		case 1: /* find */
+			result = inst.find(
+				(java.util.HashMap<String, String>)args[0],
+				(org.webinos.api.contact.ContactFindCB)args[1],
+				(org.webinos.api.contact.ContactErrorCB)args[2],
+				(org.webinos.api.contact.ContactFindOptions)args[3]
+			);
+			break;
+		case 2: /* getPhoto */
+			result = inst.getPhoto(
+				(String)args[0],
+				(org.webinos.api.contact.ContactPhotoCB)args[1],
+				(org.webinos.api.contact.ContactErrorCB)args[2]
+			);
+			break;
+		case 3: /* watchChanges */
+			result = org.meshpoint.anode.js.JSValue.asJSNumber(inst.watchChanges(
+				(org.webinos.api.contact.ContactChangeCB)args[0],
+				(org.webinos.api.contact.ContactErrorCB)args[1]
+			));
+			break;
+		default:
+		}
+		return result;
 	}
 
 }
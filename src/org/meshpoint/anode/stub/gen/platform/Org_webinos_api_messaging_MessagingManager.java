@@ -4,7 +4,7 @@ package org.meshpoint.anode.stub.gen.platform;
 
 public class Org_webinos_api_messaging_MessagingManager {
 
-	private static Object[] __args = new Object[3];
+	private static Object[] __args = new Object[4];
 
 	public static Object[] __getArgs() { return __args; }
 
@@ -20,7 +20,8 @@ public class Org_webinos_api_messaging_MessagingManager {
 			result = inst.findMessages(
 				(org.webinos.api.messaging.FindMessagesSuccessCallback)args[0],
 				(org.webinos.api.ErrorCallback)args[1],
-				(org.webinos.api.messaging.MessageFilter)args[2]
+				(org.webinos.api.messaging.MessageFilter)args[2],
+				(org.webinos.api.messaging.MessageFindOptions)args[3]
 			);
 			break;
 		case 2: /* onEmail */
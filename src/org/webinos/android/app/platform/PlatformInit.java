@@ -23,10 +23,17 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.webinos.android.R;
 import org.webinos.android.app.pzp.PzpService;
-import org.webinos.android.util.AssetUtils;
+import org.webinos.android.util.Constants;
+import org.webinos.android.util.ModuleManifest;
 import org.webinos.android.util.ModuleUtils;
 import org.webinos.android.util.ModuleUtils.ModuleType;
 
@@ -39,6 +46,7 @@ import android.content.res.AssetManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class PlatformInit extends Service {
@@ -49,6 +57,14 @@ public class PlatformInit extends Service {
 	private static final String TAG = "org.webinos.android.app.platform.PlatformInit";
 	private static final String MODULE_PATH = "modules";
 
+	/* per-module progress, with the module name and install time (ms) as extras */
+	public static final String ACTION_PROGRESS = "org.webinos.android.app.wrt.ui.PROGRESS";
+	public static final String EXTRA_MODULE = "module";
+	public static final String EXTRA_TIME = "time";
+
+	/* upper bound on the number of modules installed concurrently */
+	private static final int MAX_INSTALL_THREADS = 4;
+
 	/**
 	 * Listener for asynchronous indications of service availability
 	 */
@@ -225,23 +241,68 @@ public class PlatformInit extends Service {
 	 * @param ctx the service context
 	 * @param force force update, even if module is already present
 	 */
-	private void installModuleDependencies(boolean force) {
+	private void installModuleDependencies(final boolean force) {
 		if(initialised && !force)
 			return;
 
 		AssetManager mgr = getAssets();
+		final ModuleManifest manifest = new ModuleManifest(new File(Constants.MODULE_MANIFEST));
+		String packageStamp = ModuleManifest.getPackageStamp(new File(getPackageResourcePath()));
+		final boolean packageChanged = !packageStamp.equals(manifest.getPackageStamp());
+		final AtomicBoolean complete = new AtomicBoolean(true);
+		ModuleUtils.deleteStaging();
 		try {
 			String[] modules = mgr.list(MODULE_PATH);
-			if (modules != null) {
-				for(String module : modules) {
-					Log.v(TAG, "Checking module: " + module);
-					checkModule(module, force);
-					sendBroadcast(new Intent("org.webinos.android.app.wrt.ui.PROGRESS"));
+			if (modules != null && modules.length > 0) {
+				/* modules are independent of each other, so install them in parallel */
+				int threads = Math.min(modules.length, Math.min(MAX_INSTALL_THREADS, Runtime.getRuntime().availableProcessors()));
+				ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(modules.length);
+				for(final String module : modules) {
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							long start = SystemClock.elapsedRealtime();
+							Log.v(TAG, "Checking module: " + module);
+							if(!checkModule(module, manifest, force || packageChanged, force))
+								complete.set(false);
+							long time = SystemClock.elapsedRealtime() - start;
+							Log.v(TAG, "Checked module: " + module + " (" + time + "ms)");
+							Intent progressIntent = new Intent(ACTION_PROGRESS);
+							progressIntent.putExtra(EXTRA_MODULE, module);
+							progressIntent.putExtra(EXTRA_TIME, time);
+							sendBroadcast(progressIntent);
+							return null;
+						}
+					});
+				}
+				long start = SystemClock.elapsedRealtime();
+				try {
+					/* a module whose check threw is not current */
+					for(Future<Void> result : executor.invokeAll(tasks)) {
+						try {
+							result.get();
+						} catch(ExecutionException e) {
+							Log.v(TAG, "Module check failed; exception: " + e.getCause());
+							complete.set(false);
+						}
+					}
+				} catch(InterruptedException e) {
+					Log.v(TAG, "Interrupted while installing modules");
+					complete.set(false);
+					Thread.currentThread().interrupt();
+				} finally {
+					executor.shutdownNow();
 				}
+				Log.v(TAG, "Checked " + modules.length + " modules in " + (SystemClock.elapsedRealtime() - start) + "ms");
 			}
 		} catch (IOException e) {
 			Log.v(TAG, "Unable to get assets in " + MODULE_PATH);
+			complete.set(false);
 		}
+		/* only skip checking next time if every module is known to be current */
+		manifest.setPackageStamp(complete.get() ? packageStamp : null);
+		manifest.save();
 		initialised = true;
 		/* broadcast intent to indicate we're finished */
 		Intent postInstallIntent = new Intent(ACTION_POSTINSTALL_COMPLETE);
@@ -249,22 +310,41 @@ public class PlatformInit extends Service {
 		sendBroadcast(postInstallIntent);
 	}
 
-	private void checkModule(String asset, boolean force) {
+	/**
+	 * Ensure that the given module asset is installed and current.
+	 * @param manifest digests of the installed modules
+	 * @param check if false, an installed module recorded in the manifest is
+	 * assumed current; otherwise the asset is hashed and compared
+	 * @param force reinstall even if the installed module is current
+	 * @return true if the module is installed and current
+	 */
+	private boolean checkModule(String asset, ModuleManifest manifest, boolean check, boolean force) {
 		ModuleType modType = ModuleUtils.guessModuleType(asset);
 		String module = ModuleUtils.guessModuleName(asset, modType);
 		File installLocation = ModuleUtils.getModuleFile(module, modType);
-		if(installLocation.exists()) {
-			File pkg = new File(getPackageResourcePath());
-			if(force || pkg.exists() && installLocation.lastModified() < pkg.lastModified()) {
-				Log.v(TAG, "Module already installed, removing: " + module);
-				ModuleUtils.uninstall(module);
-			} else {
-				Log.v(TAG, "Module already installed, ignoring: " + module);
-				return;
+		String assetPath = MODULE_PATH + '/' + asset;
+		String installedDigest = installLocation.exists() ? manifest.getDigest(asset) : null;
+		if(installedDigest != null && !check) {
+			Log.v(TAG, "Module already installed, ignoring: " + module);
+			return true;
+		}
+		try {
+			String digest = ModuleManifest.digest(getAssets().open(assetPath));
+			if(digest.equals(installedDigest) && !force) {
+				Log.v(TAG, "Module already installed and unchanged, ignoring: " + module);
+				return true;
+			}
+			/* any existing version is replaced once the new one is in place */
+			Log.v(TAG, "Installing module from package: " + module);
+			if(ModuleUtils.install(getAssets().open(assetPath), module, modType)) {
+				manifest.setDigest(asset, digest);
+				return true;
 			}
+		} catch(IOException e) {
+			Log.v(TAG, "Unable to read module from package: " + module + "; exception: " + e);
 		}
-		Log.v(TAG, "Installing module from package: " + module);
-		ModuleUtils.install(this, module, AssetUtils.ASSET_URI + MODULE_PATH + '/' + asset);
+		manifest.remove(asset);
+		return false;
 	}
 
 	@Override
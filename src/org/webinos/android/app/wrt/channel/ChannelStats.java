@@ -0,0 +1,85 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.android.app.wrt.channel;
+
+import java.io.PrintWriter;
+
+import android.os.SystemClock;
+
+/**
+ * Counters for the socket service dispatch thread: inbound and outbound
+ * message counts and rates, time from arrival to completed dispatch, and
+ * the number of messages waiting to be dispatched.
+ */
+class ChannelStats {
+	private final long startTime = SystemClock.uptimeMillis();
+
+	private long received;
+	private long sent;
+	private int queued;
+	private int maxQueued;
+	private long totalLatency;
+	private long maxLatency;
+
+	/* values at the previous dump, to report rates over the interval */
+	private long lastTime = startTime;
+	private long lastReceived;
+	private long lastSent;
+
+	synchronized void onQueued() {
+		if(++queued > maxQueued)
+			maxQueued = queued;
+	}
+
+	/* called when a message has been handled; latency is measured
+	 * from the time it was queued for dispatch */
+	synchronized void onDispatched(long latency) {
+		--queued;
+		++received;
+		totalLatency += latency;
+		if(latency > maxLatency)
+			maxLatency = latency;
+	}
+
+	synchronized void onSent() {
+		++sent;
+	}
+
+	synchronized void dump(PrintWriter writer) {
+		long now = SystemClock.uptimeMillis();
+		long interval = Math.max(now - lastTime, 1);
+		long uptime = Math.max(now - startTime, 1);
+		writer.println("WebinosSocketService dispatch:");
+		writer.println("  received=" + received + " (" + rate(received - lastReceived, interval) + "/s recent, "
+				+ rate(received, uptime) + "/s overall)");
+		writer.println("  sent=" + sent + " (" + rate(sent - lastSent, interval) + "/s recent, "
+				+ rate(sent, uptime) + "/s overall)");
+		writer.println("  queued=" + queued + " maxQueued=" + maxQueued);
+		writer.println("  dispatch latency: mean=" + (received == 0 ? 0 : totalLatency / received)
+				+ "ms max=" + maxLatency + "ms");
+		lastTime = now;
+		lastReceived = received;
+		lastSent = sent;
+	}
+
+	private static long rate(long count, long interval) {
+		return count * 1000 / interval;
+	}
+}
@@ -19,11 +19,62 @@
 
 package org.webinos.android.app.wrt.channel;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
 
 public class WebinosSocketImpl extends WebinosSocket implements WebinosSocketService.ClientListener {
-	
+
+	private static final String TAG = "org.webinos.android.app.wrt.channel.WebinosSocketImpl";
+
+	/* listener callbacks run on this pool, in order for each socket, so
+	 * that a slow listener delays only its own socket and never the
+	 * service's dispatch thread */
+	private static final int CALLBACK_THREADS = 4;
+	private static final ExecutorService callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "WebinosSocket callbacks");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/* maximum number of callbacks waiting for a socket's listener; beyond
+	 * this, messages are dropped and the listener is told with onError.
+	 * A version 2 client gets credit back only as its messages are
+	 * consumed, so it cannot fill the queue; this bounds version 1 clients,
+	 * which have no flow control */
+	private static final int MAX_QUEUED_CALLBACKS = 256;
+
 	private final WebinosSocketService service;
 	private final WebinosSocketService.ClientConnection client;
+	private final ArrayDeque<Runnable> callbacks = new ArrayDeque<Runnable>();
+	private boolean draining;
+	private boolean overflowed;
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			while(true) {
+				Runnable callback;
+				synchronized(callbacks) {
+					callback = callbacks.poll();
+					if(callback == null) {
+						draining = false;
+						overflowed = false;
+						return;
+					}
+				}
+				try {
+					callback.run();
+				} catch(RuntimeException e) {
+					Log.w(TAG, "socket listener threw exception", e);
+				}
+			}
+		}
+	};
 
 	WebinosSocketImpl(WebinosSocketServerImpl server, WebinosSocketService.ClientConnection client) {
 		super(server.getEnv());
@@ -39,27 +90,72 @@ public class WebinosSocketImpl extends WebinosSocket implements WebinosSocketSer
 		service.sendMessage(client, message);
 	}
 
+	/* ClientListener methods are called on the socket service dispatch
+	 * thread; they only queue the call to the listener */
 	@Override
-	public void onMessage(String message) {
-		if(listener != null) {
-			Event ev = new Event();
-			ev.data = message;
-			listener.onMessage(ev);
+	public void onMessage(final String message) {
+		if(!post(new Runnable() {
+			public void run() {
+				try {
+					if(listener != null) {
+						Event ev = new Event();
+						ev.data = message;
+						listener.onMessage(ev);
+					}
+				} finally {
+					service.messageConsumed(client);
+				}
+			}
+		}, true)) {
+			service.messageConsumed(client);
+			/* report the overflow once per backlog */
+			synchronized(callbacks) {
+				if(overflowed)
+					return;
+				overflowed = true;
+			}
+			post(new Runnable() {
+				public void run() {
+					if(listener != null)
+						listener.onError("Listener is not consuming messages; messages dropped");
+				}
+			}, false);
 		}
 	}
 
 	@Override
-	public void onClose(String reason) {
-		if(listener != null) {
-			listener.onClose(reason);
-		}
+	public void onClose(final String reason) {
+		post(new Runnable() {
+			public void run() {
+				if(listener != null)
+					listener.onClose(reason);
+			}
+		}, false);
 	}
 
 	@Override
-	public void onError(String reason) {
-		if(listener != null) {
-			listener.onError(reason);
+	public void onError(final String reason) {
+		post(new Runnable() {
+			public void run() {
+				if(listener != null)
+					listener.onError(reason);
+			}
+		}, false);
+	}
+
+	/* queue a callback; a bounded callback is dropped, returning false, if
+	 * the queue is full. Close and error events are never dropped */
+	private boolean post(Runnable callback, boolean bounded) {
+		synchronized(callbacks) {
+			if(bounded && callbacks.size() >= MAX_QUEUED_CALLBACKS)
+				return false;
+			callbacks.add(callback);
+			if(draining)
+				return true;
+			draining = true;
 		}
+		callbackExecutor.execute(drain);
+		return true;
 	}
 
 }
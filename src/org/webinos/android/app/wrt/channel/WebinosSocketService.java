@@ -19,34 +19,52 @@
 
 package org.webinos.android.app.wrt.channel;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+
+import org.webinos.android.util.PipeTransport;
 
 import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 public class WebinosSocketService extends Service {
 
 	private static final String TAG = "org.webinos.android.app.wrt.channel.WebinosSocketServer";
 
+	/* maximum number of outbound messages held for a version 2 client
+	 * that has no send credit */
+	private static final int MAX_PENDING_MESSAGES = 256;
+
     private static WebinosSocketService theService;
     private static ArrayList<LaunchListener> listeners = new ArrayList<LaunchListener>();
     
+    private HandlerThread dispatchThread;
+    private Handler dispatchHandler;
     private Messenger messenger;
-    private HashMap<String, ClientConnection> clients = new HashMap<String, ClientConnection>();
+    private final ChannelStats stats = new ChannelStats();
+    /* keyed by version 1 client id or version 2 stream id */
+    private final SparseArray<ClientConnection> clients = new SparseArray<ClientConnection>();
     private ConnectionListener connectionListener;
 
 	public interface LaunchListener {
 		public void onLaunch(WebinosSocketService service);
 	}
 
+	/* called on the dispatch thread; see ClientListener */
 	public interface ConnectionListener {
 		public void onConnection(ClientConnection client);
 	}
@@ -62,6 +80,15 @@ public class WebinosSocketService extends Service {
 		return result;
 	}
 
+	/**
+	 * Client events. All methods are called on the service's dispatch
+	 * thread (never the main thread), in the order in which the client
+	 * sent them. Implementations must return promptly; any long-running
+	 * work must be handed off so that other clients are not delayed.
+	 * Once a message passed to onMessage has been handled, the listener
+	 * must call messageConsumed(); send credit for a version 2 client is
+	 * returned only then, so a slow listener throttles its client.
+	 */
 	public interface ClientListener {
 		public void onMessage(String message);
 		public void onClose(String reason);
@@ -74,12 +101,23 @@ public class WebinosSocketService extends Service {
     	public String instanceId;
     	public Messenger messenger;
     	public ClientListener listener;
+
+    	/* version 2 framing and flow control state; guarded by this */
+    	int version = ProtocolConstants.VERSION_1;
+    	int sendCredit = ProtocolConstants.INITIAL_CREDIT;
+    	int sendSeq;
+    	int recvSeq;
+    	int consumed;
+    	final ArrayDeque<String> pending = new ArrayDeque<String>();
     }
 
     @Override
     public void onCreate() {
     	theService = this;
-        messenger = new Messenger(new IncomingHandler());
+    	dispatchThread = new HandlerThread("WebinosSocketService dispatch");
+    	dispatchThread.start();
+    	dispatchHandler = new IncomingHandler(dispatchThread.getLooper());
+        messenger = new Messenger(dispatchHandler);
         synchronized(listeners) {
         	theService = this;
         	for(LaunchListener listener : listeners) {
@@ -90,63 +128,208 @@ public class WebinosSocketService extends Service {
         super.onCreate();
     }
 
+    @Override
+    public void onDestroy() {
+    	dispatchThread.quit();
+    	super.onDestroy();
+    }
+
     public void setConnectionListener(ConnectionListener listener) {
     	connectionListener = listener;
     }
 
-    private void removeClient(String clientKey, String reason) {
-    	ClientConnection client = clients.get(clientKey);
-    	if(client != null) {
-    		if(client.listener != null)
-    			client.listener.onClose(reason);
+    private ClientConnection getClient(int clientKey) {
+    	synchronized(clients) {
+    		return clients.get(clientKey);
+    	}
+    }
+
+    private void addClient(ClientConnection client) {
+    	synchronized(clients) {
+    		clients.put(client.id, client);
+    	}
+    	if(connectionListener != null)
+    		connectionListener.onConnection(client);
+    }
+
+    private void removeClient(int clientKey, String reason) {
+    	ClientConnection client;
+    	synchronized(clients) {
+    		client = clients.get(clientKey);
     		clients.remove(clientKey);
     	}
+    	if(client != null && client.listener != null)
+    		client.listener.onClose(reason);
+    }
+
+    private static ClientConnection newClient(Message msg, int id) {
+    	ClientConnection client = new ClientConnection();
+    	Bundle bundle = (Bundle)msg.obj;
+    	client.installId = bundle.getString("installId");
+    	client.instanceId = bundle.getString("instanceId");
+    	client.id = id;
+    	client.messenger = msg.replyTo;
+    	return client;
     }
 
     private class IncomingHandler extends Handler {
+    	IncomingHandler(Looper looper) {
+    		super(looper);
+    	}
+
+    	/* messages from clients arrive here on a binder thread */
+    	@Override
+    	public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+    		stats.onQueued();
+    		return super.sendMessageAtTime(msg, uptimeMillis);
+    	}
+
+    	@Override
+    	public void dispatchMessage(Message msg) {
+    		long queuedAt = msg.getWhen();
+    		super.dispatchMessage(msg);
+    		stats.onDispatched(SystemClock.uptimeMillis() - queuedAt);
+    	}
+
         @Override
         public void handleMessage(Message msg) {
+        	if(ProtocolConstants.isFrame(msg.what)) {
+        		handleFrame(msg);
+        		return;
+        	}
         	ClientConnection client;
-        	Log.v(TAG, "handleMessage: msg: " + msg.toString());
         	int clientId = ProtocolConstants.whatToId(msg.what);
             switch (ProtocolConstants.whatToMsg(msg.what)) {
             case ProtocolConstants.MSG_REGISTER:
             	Log.v(TAG, "IncomingHander: register");
+            	if(msg.arg1 >= ProtocolConstants.VERSION_2 && msg.replyTo != null) {
+            		try {
+            			Message reply = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_REGISTER, 0), ProtocolConstants.VERSION_2, 0);
+            			msg.replyTo.send(reply);
+            		} catch(RemoteException e) {
+            			Log.v(TAG, "RemoteException attempting to acknowledge register: ", e);
+            		}
+            	}
             	break;
             case ProtocolConstants.MSG_UNREGISTER:
             	Log.v(TAG, "IncomingHander: unregister");
             	break;
             case ProtocolConstants.MSG_CONNECT:
             	Log.v(TAG, "IncomingHander: connect");
-            	/* construct new ClientConnection */
-            	client = new ClientConnection();
-            	Bundle bundle = (Bundle)msg.obj;
-            	client.installId = bundle.getString("installId");
-            	client.instanceId = bundle.getString("instanceId");
-            	client.id = ProtocolConstants.whatToId(msg.what);
-            	client.messenger = msg.replyTo;
-            	clients.put(String.valueOf(client.id), client);
-            	if(connectionListener != null)
-            		connectionListener.onConnection(client);
+            	addClient(newClient(msg, clientId));
             	break;
             case ProtocolConstants.MSG_DISCONNECT:
             	Log.v(TAG, "IncomingHander: disconnect");
-            	removeClient(String.valueOf(clientId), "Connection disconnected by client");
+            	removeClient(clientId, "Connection disconnected by client");
             	break;
             case ProtocolConstants.MSG_DATA:
-            	Log.v(TAG, "IncomingHander: data");
-            	String data = ((Bundle)msg.obj).getString("data");
-            	client = clients.get(String.valueOf(clientId));
-            	if(client != null && client.listener != null)
-            		client.listener.onMessage(data);
+            	client = getClient(clientId);
+            	if(client != null)
+            		deliver(client, (Bundle)msg.obj);
+            	else
+            		PipeTransport.release((Bundle)msg.obj);
             	break;
            default:
                 super.handleMessage(msg);
             }
-        	Log.v(TAG, "handleMessage: ret");
+        }
+
+        private void handleFrame(Message msg) {
+        	int streamId = msg.arg1;
+        	ClientConnection client;
+        	switch(ProtocolConstants.frameToMsg(msg.what)) {
+        	case ProtocolConstants.MSG_CONNECT:
+        		client = newClient(msg, streamId);
+        		client.version = ProtocolConstants.VERSION_2;
+        		addClient(client);
+        		break;
+        	case ProtocolConstants.MSG_DISCONNECT:
+            	removeClient(streamId, "Connection disconnected by client");
+        		break;
+        	case ProtocolConstants.MSG_DATA:
+        		client = getClient(streamId);
+        		if(client == null) {
+        			PipeTransport.release((Bundle)msg.obj);
+        			break;
+        		}
+        		if(msg.arg2 != client.recvSeq)
+        			Log.w(TAG, "stream " + streamId + ": expected sequence " + client.recvSeq + ", received " + msg.arg2);
+        		client.recvSeq = msg.arg2 + 1;
+        		if(!deliver(client, (Bundle)msg.obj))
+        			returnCredit(client);
+        		break;
+        	case ProtocolConstants.MSG_CREDIT:
+        		client = getClient(streamId);
+        		if(client != null)
+        			addCredit(client, msg.arg2);
+        		break;
+        	default:
+        		super.handleMessage(msg);
+        	}
         }
     }
 
+    /* returns true if the message was passed to the listener, which then
+     * calls messageConsumed() once it has handled it */
+    private boolean deliver(ClientConnection client, Bundle bundle) {
+    	if(client.listener == null) {
+    		PipeTransport.release(bundle);
+    		return false;
+    	}
+    	try {
+    		client.listener.onMessage(PipeTransport.unpack(bundle));
+    		return true;
+    	} catch(IOException e) {
+    		client.listener.onError("Unable to read message data: " + e);
+    		return false;
+    	}
+    }
+
+    /* called by a client's listener, on any thread, once it has handled a
+     * message passed to onMessage */
+    public void messageConsumed(final ClientConnection client) {
+    	if(client.version < ProtocolConstants.VERSION_2)
+    		return;
+    	dispatchHandler.post(new Runnable() {
+    		public void run() {
+    			returnCredit(client);
+    		}
+    	});
+    }
+
+    /* grant the client more send credit once a batch has been consumed;
+     * called on the dispatch thread */
+    private void returnCredit(ClientConnection client) {
+    	if(++client.consumed < ProtocolConstants.CREDIT_BATCH)
+    		return;
+    	Message msg = Message.obtain(null, ProtocolConstants.toFrameWhat(ProtocolConstants.MSG_CREDIT, 0), client.id, client.consumed);
+    	client.consumed = 0;
+    	try {
+    		client.messenger.send(msg);
+    	} catch(RemoteException e) {
+        	Log.v(TAG, "RemoteException attempting to send credit: ", e);
+    	}
+    }
+
+    private void addCredit(ClientConnection client, int credit) {
+    	synchronized(client) {
+    		client.sendCredit += credit;
+    		while(client.sendCredit > 0 && !client.pending.isEmpty()) {
+    			--client.sendCredit;
+    			sendFrame(client, client.pending.poll());
+    		}
+    	}
+    }
+
+    /* adb shell dumpsys activity service org.webinos.android/.app.wrt.channel.WebinosSocketService */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    	synchronized(clients) {
+    		writer.println("WebinosSocketService: clients=" + clients.size());
+    	}
+    	stats.dump(writer);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
     	Log.v(TAG, "onBind()");
@@ -157,20 +340,64 @@ public class WebinosSocketService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
     	Log.v(TAG, "onUnbind()");
-    	for(String clientKey : clients.keySet()) {
+    	int[] clientKeys;
+    	synchronized(clients) {
+    		clientKeys = new int[clients.size()];
+    		for(int i = 0; i < clientKeys.length; i++)
+    			clientKeys[i] = clients.keyAt(i);
+    	}
+    	for(int clientKey : clientKeys) {
     		removeClient(clientKey, "WRT exited");
     	}
     	return super.onUnbind(intent);
     }
 
     public void sendMessage(ClientConnection client, String message) {
-    	Bundle messageBundle = new Bundle();
-    	messageBundle.putString("data", message);
-    	Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_DATA, client.id), messageBundle);
+    	if(client.version < ProtocolConstants.VERSION_2) {
+    		send(client, ProtocolConstants.toWhat(ProtocolConstants.MSG_DATA, client.id), 0, 0, message);
+    		return;
+    	}
+    	boolean overflow = false;
+    	synchronized(client) {
+    		if(client.sendCredit > 0) {
+    			--client.sendCredit;
+    			sendFrame(client, message);
+    		} else if(client.pending.size() < MAX_PENDING_MESSAGES) {
+    			client.pending.add(message);
+    		} else {
+    			overflow = true;
+    		}
+    	}
+    	if(overflow && client.listener != null)
+    		client.listener.onError("Client is not consuming messages; message dropped");
+    }
+
+    /* must be called holding the client lock, to preserve sequence order */
+    private void sendFrame(ClientConnection client, String message) {
+    	send(client, ProtocolConstants.MSG_DATA, client.id, client.sendSeq++, message);
+    }
+
+    private void send(ClientConnection client, int what, int arg1, int arg2, String message) {
+    	Bundle messageBundle = null;
         try {
+        	/* version 1 clients read the payload from the "data" key only */
+        	if(client.version < ProtocolConstants.VERSION_2) {
+        		messageBundle = PipeTransport.packInline(message);
+        	} else {
+        		messageBundle = PipeTransport.pack(message);
+        		int flags = messageBundle.containsKey(PipeTransport.KEY_FD) ? ProtocolConstants.FLAG_PIPE : 0;
+        		what = ProtocolConstants.toFrameWhat(what, flags);
+        	}
+        	Message msg = Message.obtain(null, what, arg1, arg2, messageBundle);
         	client.messenger.send(msg);
+        	stats.onSent();
         } catch(RemoteException e) {
         	Log.v(TAG, "RemoteException attempting to send message: ", e);
+        } catch(IOException e) {
+        	Log.v(TAG, "IOException attempting to send message: ", e);
+        } finally {
+        	if(messageBundle != null)
+        		PipeTransport.release(messageBundle);
         }
     }
 
@@ -34,9 +34,29 @@ import android.os.IBinder;
 public class WidgetManagerService extends Service {
 	private static final String TAG = WidgetManagerService.class.getCanonicalName();
 
+	/* broadcast to the WRT process on widget change; see WrtReceiver */
+	static final String ACTION_WIDGET_CHANGED = "org.webinos.android.wrt.WIDGET_CHANGED";
+	static final String ID = "id";
+	static final String EVENT = "event";
+
 	private ArrayList<WidgetManagerLaunchListener> wgtMgrListeners = new ArrayList<WidgetManagerLaunchListener>();
 	private WidgetManagerImpl theManager;
 
+	/**
+	 * Forwards widget change events to the WRT process, which caches
+	 * widget configuration and so needs to know when it becomes stale
+	 */
+	private final WidgetManagerImpl.EventListener wrtNotifier = new WidgetManagerImpl.EventListener() {
+		@Override
+		public void onWidgetChanged(String installId, int event) {
+			Intent intent = new Intent(ACTION_WIDGET_CHANGED);
+			intent.setPackage(getPackageName());
+			intent.putExtra(ID, installId);
+			intent.putExtra(EVENT, event);
+			sendBroadcast(intent);
+		}
+	};
+
 	/**
 	 * The singleton service
 	 */
@@ -114,6 +134,7 @@ public class WidgetManagerService extends Service {
 
 	public synchronized void setWidgetManager(WidgetManagerImpl mgr) {
 		theManager = mgr;
+		mgr.addEventListener(wrtNotifier);
 		if(wgtMgrListeners.size() > 0)
 			for(WidgetManagerLaunchListener listener : wgtMgrListeners)
 				listener.onLaunch(mgr);
@@ -0,0 +1,93 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.android.app.wrt.provider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * A byte-bounded LRU cache of widget file contents.
+ * (android.util.LruCache is not available at our minimum API level.)
+ */
+class AssetCache {
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, byte[]> map = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+	private long bytes;
+
+	/* statistics */
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	AssetCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	synchronized byte[] get(String key) {
+		byte[] result = map.get(key);
+		if(result != null)
+			++hits;
+		else
+			++misses;
+		return result;
+	}
+
+	synchronized void put(String key, byte[] data) {
+		if(data.length > maxBytes)
+			return;
+		byte[] previous = map.put(key, data);
+		if(previous != null)
+			bytes -= previous.length;
+		bytes += data.length;
+		Iterator<Map.Entry<String, byte[]>> it = map.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().length;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	/* remove all entries whose key starts with the given prefix */
+	synchronized void removePrefix(String prefix) {
+		Iterator<Map.Entry<String, byte[]>> it = map.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, byte[]> entry = it.next();
+			if(entry.getKey().startsWith(prefix)) {
+				bytes -= entry.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	synchronized Bundle getStats() {
+		Bundle result = new Bundle();
+		result.putLong("hits", hits);
+		result.putLong("misses", misses);
+		result.putLong("evictions", evictions);
+		result.putInt("entries", map.size());
+		result.putLong("bytes", bytes);
+		result.putLong("maxBytes", maxBytes);
+		return result;
+	}
+}
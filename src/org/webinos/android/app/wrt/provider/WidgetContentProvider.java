@@ -20,25 +20,207 @@
 package org.webinos.android.app.wrt.provider;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.net.URI;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.webinos.android.app.wrt.mgr.WidgetManagerImpl;
+import org.webinos.android.app.wrt.mgr.WidgetManagerService;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+public class WidgetContentProvider extends ContentProvider
+		implements ContentProvider.PipeDataWriter<byte[]>, WidgetManagerImpl.EventListener {
+
+	private static final String TAG = "org.webinos.android.app.wrt.provider.WidgetContentProvider";
+	private static final File BASE_DIR = new File("/data/data/org.webinos.android/wrt");
+
+	/* methods supported by call() */
+	public static final String METHOD_GET_STATS  = "getStats";
+	public static final String METHOD_INVALIDATE = "invalidate";
+
+	/* optional query parameters selecting a range of the file */
+	public static final String PARAM_OFFSET = "offset";
+	public static final String PARAM_LENGTH = "length";
 
-public class WidgetContentProvider extends ContentProvider {
-	
-	private static final String FILE_BASE_URI = "file:///data/data/org.webinos.android/wrt";
+	/* files up to this size are held in the memory cache */
+	private static final int MAX_CACHED_FILE_SIZE = 32 * 1024;
+	private static final long CACHE_SIZE = 2 * 1024 * 1024;
+
+	private final HashMap<String, WidgetIndex> indexes = new HashMap<String, WidgetIndex>();
+	private final AssetCache cache = new AssetCache(CACHE_SIZE);
+	private boolean listening;
 
 	@Override
 	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
-		URI uri1 = URI.create(FILE_BASE_URI + uri.getPath());
-		File file = new File(uri1.getPath());
-		ParcelFileDescriptor parcel = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
-		return parcel;
+		/* a bare descriptor has no offset or length, so a range of a
+		 * file opened directly cannot be served from here */
+		return open(uri, false).getParcelFileDescriptor();
+	}
+
+	@Override
+	public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+		return open(uri, true);
+	}
+
+	private AssetFileDescriptor open(Uri uri, boolean subrangeAllowed) throws FileNotFoundException {
+		String path = uri.getPath();
+		WidgetIndex.Entry entry = getEntry(path);
+		if(entry == null)
+			throw new FileNotFoundException("Not found: " + path);
+
+		long offset = getLongParameter(uri, PARAM_OFFSET, 0);
+		long length = getLongParameter(uri, PARAM_LENGTH, entry.length - offset);
+		if(offset < 0 || length < 0 || offset + length > entry.length)
+			throw new FileNotFoundException("Invalid range requested: " + uri);
+
+		if(entry.length <= MAX_CACHED_FILE_SIZE) {
+			byte[] data = cache.get(path);
+			if(data == null) {
+				try {
+					data = readFile(entry.file, (int)entry.length);
+				} catch(IOException e) {
+					throw new FileNotFoundException("Unable to read " + path + ": " + e);
+				}
+				cache.put(path, data);
+			}
+			Bundle range = new Bundle();
+			range.putLong(PARAM_OFFSET, offset);
+			range.putLong(PARAM_LENGTH, length);
+			ParcelFileDescriptor pipe = openPipeHelper(uri, entry.mimeType, range, data, this);
+			return new AssetFileDescriptor(pipe, 0, length);
+		}
+
+		if(!subrangeAllowed && (offset != 0 || length != entry.length))
+			throw new FileNotFoundException("Ranged request requires openAssetFile: " + uri);
+		ParcelFileDescriptor parcel = ParcelFileDescriptor.open(entry.file, ParcelFileDescriptor.MODE_READ_ONLY);
+		return new AssetFileDescriptor(parcel, offset, length);
+	}
+
+	@Override
+	public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, byte[] data) {
+		FileOutputStream fos = new FileOutputStream(output.getFileDescriptor());
+		try {
+			fos.write(data, (int)opts.getLong(PARAM_OFFSET), (int)opts.getLong(PARAM_LENGTH));
+		} catch(IOException e) {
+			/* the reader went away */
+		} finally {
+			try { fos.close(); } catch(IOException e) {}
+		}
+	}
+
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if(METHOD_GET_STATS.equals(method)) {
+			Bundle result = cache.getStats();
+			synchronized(indexes) {
+				result.putInt("indexedWidgets", indexes.size());
+			}
+			return result;
+		}
+		if(METHOD_INVALIDATE.equals(method)) {
+			invalidate(arg);
+			return null;
+		}
+		return super.call(method, arg, extras);
+	}
+
+	/*****************************
+	 * WidgetManagerImpl.EventListener
+	 *****************************/
+	@Override
+	public void onWidgetChanged(String installId, int event) {
+		invalidate(installId);
+	}
+
+	private void invalidate(String installId) {
+		if(installId == null)
+			return;
+		synchronized(indexes) {
+			indexes.remove(installId);
+		}
+		cache.removePrefix('/' + installId + '/');
+	}
+
+	private WidgetIndex.Entry getEntry(String path) {
+		registerListener();
+		if(path == null || path.length() < 2 || path.contains(".."))
+			return null;
+		int idEnd = path.indexOf('/', 1);
+		if(idEnd == -1)
+			return null;
+		String installId = path.substring(1, idEnd);
+		WidgetIndex index;
+		synchronized(indexes) {
+			index = indexes.get(installId);
+			if(index == null) {
+				long start = System.currentTimeMillis();
+				index = new WidgetIndex(BASE_DIR, installId);
+				indexes.put(installId, index);
+				Log.v(TAG, "indexed " + index.size() + " files for " + installId + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+		}
+		WidgetIndex.Entry entry = index.get(path);
+		if(entry == null) {
+			/* not known at the time the index was built */
+			File file = new File(BASE_DIR, path);
+			if(file.isFile())
+				entry = new WidgetIndex.Entry(file, WidgetIndex.guessMimeType(file.getName()));
+		}
+		return entry;
+	}
+
+	/* the widget manager is started lazily, so subscribe to its change
+	 * events once it is available, without starting it ourselves. Anything
+	 * indexed or cached before then may have missed a change, so it is
+	 * discarded when the subscription is made */
+	private synchronized void registerListener() {
+		if(!listening) {
+			WidgetManagerImpl mgr = WidgetManagerService.getWidgetManagerInstance();
+			if(mgr != null) {
+				mgr.addEventListener(this);
+				listening = true;
+				synchronized(indexes) {
+					indexes.clear();
+				}
+				cache.removePrefix("/");
+			}
+		}
+	}
+
+	private static long getLongParameter(Uri uri, String name, long defaultValue) {
+		String value = uri.getQueryParameter(name);
+		if(value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] readFile(File file, int length) throws IOException {
+		byte[] result = new byte[length];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			int offset = 0, read;
+			while(offset < length && (read = fis.read(result, offset, length - offset)) != -1)
+				offset += read;
+			if(offset < length)
+				throw new IOException("Unexpected end of file");
+		} finally {
+			fis.close();
+		}
+		return result;
 	}
 
 	@Override
@@ -53,7 +235,8 @@ public class WidgetContentProvider extends ContentProvider {
 
 	@Override 
 	public String getType(Uri uri) {
-		throw new UnsupportedOperationException("Not supported by this provider");
+		WidgetIndex.Entry entry = getEntry(uri.getPath());
+		return (entry == null) ? null : entry.mimeType;
 	}
 
 	@Override
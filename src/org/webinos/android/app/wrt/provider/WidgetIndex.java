@@ -0,0 +1,96 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.android.app.wrt.provider;
+
+import java.io.File;
+import java.util.HashMap;
+
+import android.webkit.MimeTypeMap;
+
+/**
+ * An index of the files of a single installed widget, built with one
+ * walk of the widget's install directory. Paths are relative to the
+ * provider root, ie of the form "/<installId>/wgt/index.html".
+ */
+class WidgetIndex {
+
+	static class Entry {
+		final File file;
+		final long length;
+		final String mimeType;
+		Entry(File file, String mimeType) {
+			this.file = file;
+			this.length = file.length();
+			this.mimeType = mimeType;
+		}
+	}
+
+	/* types that are missing from MimeTypeMap on some platform versions */
+	private static final HashMap<String, String> extraTypes = new HashMap<String, String>();
+	static {
+		extraTypes.put("js",   "application/javascript");
+		extraTypes.put("json", "application/json");
+		extraTypes.put("css",  "text/css");
+		extraTypes.put("htm",  "text/html");
+		extraTypes.put("html", "text/html");
+		extraTypes.put("xml",  "application/xml");
+		extraTypes.put("svg",  "image/svg+xml");
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	WidgetIndex(File baseDir, String installId) {
+		File installDir = new File(baseDir, installId);
+		if(installDir.isDirectory())
+			addDir(installDir, '/' + installId);
+	}
+
+	Entry get(String path) {
+		return entries.get(path);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private void addDir(File dir, String path) {
+		File[] children = dir.listFiles();
+		if(children == null)
+			return;
+		for(File child : children) {
+			String childPath = path + '/' + child.getName();
+			if(child.isDirectory())
+				addDir(child, childPath);
+			else
+				entries.put(childPath, new Entry(child, guessMimeType(child.getName())));
+		}
+	}
+
+	static String guessMimeType(String name) {
+		int dot = name.lastIndexOf('.');
+		if(dot == -1)
+			return null;
+		String extension = name.substring(dot + 1).toLowerCase();
+		String result = extraTypes.get(extension);
+		if(result == null)
+			result = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+		return result;
+	}
+}
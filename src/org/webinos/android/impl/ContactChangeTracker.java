@@ -0,0 +1,258 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011 Istituto Superiore Mario Boella (ISMB)
+******************************************************************************/
+
+
+package org.webinos.android.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.webinos.api.contact.ContactChangeCB;
+import org.webinos.api.contact.ContactChanges;
+import org.webinos.api.contact.ContactError;
+import org.webinos.api.contact.ContactErrorCB;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+/**
+ * Reports added, updated and removed contacts to registered watches.
+ * While there are any watches a snapshot of (contact id, version) pairs is
+ * kept, and is compared against the provider once a burst of change
+ * notifications has settled; no contact is loaded to detect a change.
+ */
+class ContactChangeTracker {
+	private static final String TAG = "org.webinos.android.impl.ContactChangeTracker";
+
+	/* time to wait for further notifications before rescanning */
+	static final long DEBOUNCE_MILLIS = 500;
+	/* longest a rescan is deferred by a continuous stream of notifications */
+	static final long MAX_DELAY_MILLIS = 3000;
+
+	private static class Watch {
+		final ContactChangeCB changeCB;
+		final ContactErrorCB errorCB;
+		Watch(ContactChangeCB changeCB, ContactErrorCB errorCB) {
+			this.changeCB = changeCB;
+			this.errorCB = errorCB;
+		}
+	}
+
+	private final ContentResolver contentResolver;
+	private final HashMap<Long, Watch> watches = new HashMap<Long, Watch>();
+	private long nextId = 1;
+	private Feed feed;
+
+	ContactChangeTracker(ContentResolver contentResolver) {
+		this.contentResolver = contentResolver;
+	}
+
+	/* add a watch; the provider is only observed while there is at least one */
+	synchronized long watch(ContactChangeCB changeCB, ContactErrorCB errorCB) {
+		long id = nextId++;
+		watches.put(id, new Watch(changeCB, errorCB));
+		if(feed == null) {
+			HandlerThread thread = new HandlerThread("ContactManager changes");
+			thread.setDaemon(true);
+			thread.start();
+			feed = new Feed(thread);
+			feed.start();
+		}
+		return id;
+	}
+
+	synchronized void clear(long id) {
+		if(watches.remove(id) != null && watches.isEmpty())
+			release();
+	}
+
+	synchronized void release() {
+		watches.clear();
+		if(feed != null) {
+			feed.stop();
+			feed = null;
+		}
+	}
+
+	private synchronized Watch[] getWatches() {
+		return watches.values().toArray(new Watch[watches.size()]);
+	}
+
+	/* drop every watch of a feed that could not start; returns the dropped watches */
+	private synchronized Watch[] abandon(Feed failed) {
+		if(feed != failed)
+			return new Watch[0];
+		Watch[] result = getWatches();
+		release();
+		return result;
+	}
+
+	/**
+	 * The observer and snapshot for one period of watching. Notifications,
+	 * scans and callbacks all happen on the feed's own thread.
+	 */
+	private class Feed extends ContentObserver implements Runnable {
+		private final HandlerThread thread;
+		private final Handler handler;
+		private HashMap<Long, Long> snapshot = new HashMap<Long, Long>();
+		private long firstPending;
+		private boolean registered;
+		private boolean stopped;
+
+		Feed(HandlerThread thread) {
+			this(thread, new Handler(thread.getLooper()));
+		}
+
+		private Feed(HandlerThread thread, Handler handler) {
+			super(handler);
+			this.thread = thread;
+			this.handler = handler;
+		}
+
+		/* take the initial snapshot, then start observing; without a
+		 * snapshot every contact would later be reported as added, so
+		 * if it cannot be taken the watches are failed and dropped */
+		void start() {
+			handler.post(new Runnable() {
+				public void run() {
+					try {
+						snapshot = scan();
+					} catch(RuntimeException e) {
+						Log.v(TAG, "Unable to read contact versions; exception: " + e);
+						for(Watch watch : abandon(Feed.this))
+							onError(watch);
+						return;
+					}
+					synchronized(Feed.this) {
+						if(stopped)
+							return;
+						contentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, Feed.this);
+						registered = true;
+					}
+				}
+			});
+		}
+
+		void stop() {
+			synchronized(this) {
+				stopped = true;
+				if(registered)
+					contentResolver.unregisterContentObserver(this);
+			}
+			thread.quit();
+		}
+
+		/* defer the rescan until notifications stop arriving, but
+		 * no later than MAX_DELAY_MILLIS after the first of them */
+		@Override
+		public void onChange(boolean selfChange) {
+			long now = SystemClock.uptimeMillis();
+			if(firstPending == 0)
+				firstPending = now;
+			handler.removeCallbacks(this);
+			long delay = Math.min(DEBOUNCE_MILLIS, firstPending + MAX_DELAY_MILLIS - now);
+			handler.postDelayed(this, Math.max(delay, 0));
+		}
+
+		@Override
+		public void run() {
+			firstPending = 0;
+			long start = SystemClock.elapsedRealtime();
+			HashMap<Long, Long> current;
+			try {
+				current = scan();
+			} catch(RuntimeException e) {
+				Log.v(TAG, "Unable to read contact versions; exception: " + e);
+				for(Watch watch : getWatches())
+					onError(watch);
+				return;
+			}
+
+			ArrayList<String> added = new ArrayList<String>();
+			ArrayList<String> updated = new ArrayList<String>();
+			for(Map.Entry<Long, Long> entry : current.entrySet()) {
+				Long previous = snapshot.remove(entry.getKey());
+				if(previous == null)
+					added.add(entry.getKey().toString());
+				else if(!previous.equals(entry.getValue()))
+					updated.add(entry.getKey().toString());
+			}
+			/* whatever is left of the old snapshot has gone */
+			ArrayList<String> removed = new ArrayList<String>(snapshot.size());
+			for(Long id : snapshot.keySet())
+				removed.add(id.toString());
+			snapshot = current;
+
+			Log.v(TAG, "compared " + current.size() + " contacts in " + (SystemClock.elapsedRealtime() - start)
+					+ "ms: " + added.size() + " added, " + updated.size() + " updated, " + removed.size() + " removed");
+			if(added.isEmpty() && updated.isEmpty() && removed.isEmpty())
+				return;
+
+			ContactChanges changes = new ContactChanges();
+			changes.added = added.toArray(new String[added.size()]);
+			changes.updated = updated.toArray(new String[updated.size()]);
+			changes.removed = removed.toArray(new String[removed.size()]);
+			for(Watch watch : getWatches()) {
+				try {
+					watch.changeCB.onChange(changes);
+				} catch(RuntimeException e) {
+					Log.v(TAG, "change callback failed; exception: " + e);
+				}
+			}
+		}
+	}
+
+	/* read the version of every contact, combining the versions of
+	 * its raw contacts; only two columns of each raw contact are read */
+	private HashMap<Long, Long> scan() {
+		HashMap<Long, Long> result = new HashMap<Long, Long>();
+		Cursor cursor = contentResolver.query(RawContacts.CONTENT_URI,
+				new String[] {RawContacts.CONTACT_ID, RawContacts.VERSION},
+				RawContacts.DELETED + " = 0 AND " + RawContacts.CONTACT_ID + " IS NOT NULL",
+				null, RawContacts.CONTACT_ID + ", " + RawContacts._ID);
+		if(cursor == null)
+			throw new IllegalStateException("contacts provider unavailable");
+		try {
+			while(cursor.moveToNext()) {
+				Long contactId = cursor.getLong(0);
+				long version = cursor.getLong(1);
+				Long previous = result.get(contactId);
+				result.put(contactId, (previous == null) ? version : previous * 31 + version);
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	private static void onError(Watch watch) {
+		if(watch.errorCB != null) {
+			ContactError error = new ContactError();
+			error.code = ContactError.UNKNOWN_ERROR;
+			watch.errorCB.onError(error);
+		}
+	}
+}
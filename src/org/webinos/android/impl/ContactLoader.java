@@ -0,0 +1,474 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011 Istituto Superiore Mario Boella (ISMB)
+******************************************************************************/
+
+package org.webinos.android.impl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.webinos.api.contact.Contact;
+import org.webinos.api.contact.ContactAddress;
+import org.webinos.api.contact.ContactField;
+import org.webinos.api.contact.ContactName;
+import org.webinos.api.contact.ContactOrganization;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Im;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.util.Log;
+
+/**
+ * Materialises contacts from a query of ContactsContract.Contacts and a
+ * single query of ContactsContract.Data, both ordered by contact id,
+ * folding each contact's rows into a ContactImpl as the cursors are read.
+ */
+class ContactLoader {
+	private static final String TAG = "org.webinos.android.impl.ContactLoader";
+
+	/* all of the data kinds that are mapped to Contact attributes */
+	private static final String[] MIMETYPES = new String[] {
+		StructuredName.CONTENT_ITEM_TYPE,
+		Nickname.CONTENT_ITEM_TYPE,
+		Phone.CONTENT_ITEM_TYPE,
+		Email.CONTENT_ITEM_TYPE,
+		StructuredPostal.CONTENT_ITEM_TYPE,
+		Im.CONTENT_ITEM_TYPE,
+		Organization.CONTENT_ITEM_TYPE,
+		Event.CONTENT_ITEM_TYPE,
+		Note.CONTENT_ITEM_TYPE,
+		Website.CONTENT_ITEM_TYPE
+	};
+
+	/* the kind-specific columns are aliases of the generic data columns, so
+	 * a single projection serves every kind */
+	private static final String[] PROJECTION = new String[] {
+		ContactsContract.Data.CONTACT_ID,
+		ContactsContract.Data.MIMETYPE,
+		ContactsContract.Data.IS_PRIMARY,
+		ContactsContract.Data.CONTACT_STATUS_LABEL,
+		ContactsContract.Data.DATA1,
+		ContactsContract.Data.DATA2,
+		ContactsContract.Data.DATA3,
+		ContactsContract.Data.DATA4,
+		ContactsContract.Data.DATA5,
+		ContactsContract.Data.DATA6,
+		ContactsContract.Data.DATA7,
+		ContactsContract.Data.DATA8,
+		ContactsContract.Data.DATA9,
+		ContactsContract.Data.DATA10
+	};
+
+	private static final String SORT_ORDER = ContactsContract.Data.CONTACT_ID + ", " + ContactsContract.Data.MIMETYPE;
+
+	/* the time a contact was last changed; Contacts.CONTACT_LAST_UPDATED_TIMESTAMP from API level 18 */
+	private static final String LAST_UPDATED = "contact_last_updated_timestamp";
+
+	/* every contact is listed, including those with no rows of a mapped kind */
+	private static final String[] CONTACT_PROJECTION = (Build.VERSION.SDK_INT >= 18)
+		? new String[] {ContactsContract.Contacts._ID, ContactsContract.Contacts.DISPLAY_NAME, LAST_UPDATED}
+		: new String[] {ContactsContract.Contacts._ID, ContactsContract.Contacts.DISPLAY_NAME};
+
+	/**
+	 * Receives contacts as they are materialised.
+	 */
+	interface Sink {
+		/* return false to stop loading */
+		boolean onContact(Contact contact);
+	}
+
+	private final ContactManagerImpl mgr;
+	private final ContentResolver contentResolver;
+
+	/* column indices, resolved once per query */
+	private int colContactId, colMimeType, colIsPrimary, colStatusLabel;
+	private int colGivenName, colFamilyName, colPrefix, colMiddleName, colSuffix;
+	private int colData, colType, colStreet, colCity, colRegion, colPostcode, colCountry;
+	private int colImProtocol, colOrgTitle, colOrgDepartment;
+
+	ContactLoader(ContactManagerImpl mgr, ContentResolver contentResolver) {
+		this.mgr = mgr;
+		this.contentResolver = contentResolver;
+	}
+
+	/**
+	 * Load contacts.
+	 * @param ids the ids of the contacts to load, or null to load all contacts
+	 * @return the contacts, in order of id
+	 */
+	Contact[] load(long[] ids) {
+		final ArrayList<Contact> contacts = new ArrayList<Contact>();
+		load(ids, new Sink() {
+			public boolean onContact(Contact contact) {
+				contacts.add(contact);
+				return true;
+			}
+		});
+		return contacts.toArray(new Contact[contacts.size()]);
+	}
+
+	/**
+	 * Load contacts, passing each to the given sink, in order of id, as
+	 * soon as all of its rows have been read.
+	 * @param ids the ids of the contacts to load, or null to load all contacts
+	 * @return false if loading was stopped by the sink
+	 */
+	boolean load(long[] ids, Sink sink) {
+		if(ids != null && ids.length == 0)
+			return true;
+
+		long start = SystemClock.elapsedRealtime();
+		/* ids are numeric so are inlined, to avoid the host parameter limit */
+		String idList = null;
+		if(ids != null) {
+			StringBuilder list = new StringBuilder(" IN (");
+			for(int i = 0; i < ids.length; i++) {
+				if(i > 0) list.append(',');
+				list.append(ids[i]);
+			}
+			idList = list.append(')').toString();
+		}
+		StringBuilder selection = new StringBuilder(ContactsContract.Data.MIMETYPE).append(" IN (");
+		for(int i = 0; i < MIMETYPES.length; i++)
+			selection.append(i == 0 ? "?" : ",?");
+		selection.append(')');
+		if(idList != null)
+			selection.append(" AND ").append(ContactsContract.Data.CONTACT_ID).append(idList);
+
+		Cursor contactCursor = contentResolver.query(ContactsContract.Contacts.CONTENT_URI, CONTACT_PROJECTION,
+				(idList == null) ? null : ContactsContract.Contacts._ID + idList, null, ContactsContract.Contacts._ID);
+		if(contactCursor == null)
+			return true;
+
+		boolean complete = true;
+		int count = 0, rows = 0;
+		Cursor cursor = null;
+		try {
+			cursor = contentResolver.query(ContactsContract.Data.CONTENT_URI, PROJECTION, selection.toString(), MIMETYPES, SORT_ORDER);
+			if(cursor != null)
+				resolveColumns(cursor);
+			boolean hasRow = cursor != null && cursor.moveToNext();
+			while(contactCursor.moveToNext()) {
+				long contactId = contactCursor.getLong(0);
+				Builder builder = new Builder(contactId, contactCursor.getString(1));
+				if(contactCursor.getColumnCount() > 2 && !contactCursor.isNull(2))
+					builder.revision = new Date(contactCursor.getLong(2));
+				/* skip rows of contacts created since the contacts were listed */
+				while(hasRow && cursor.getLong(colContactId) < contactId)
+					hasRow = cursor.moveToNext();
+				while(hasRow && cursor.getLong(colContactId) == contactId) {
+					++rows;
+					addRow(builder, cursor);
+					hasRow = cursor.moveToNext();
+				}
+				++count;
+				if(!sink.onContact(build(builder))) {
+					complete = false;
+					break;
+				}
+			}
+		} finally {
+			contactCursor.close();
+			if(cursor != null)
+				cursor.close();
+		}
+		Log.v(TAG, "load: " + count + " contacts from " + rows + " rows in 2 queries, "
+				+ (SystemClock.elapsedRealtime() - start) + "ms" + (complete ? "" : " (stopped)"));
+		return complete;
+	}
+
+	private void resolveColumns(Cursor cursor) {
+		colContactId = cursor.getColumnIndexOrThrow(ContactsContract.Data.CONTACT_ID);
+		colMimeType = cursor.getColumnIndexOrThrow(ContactsContract.Data.MIMETYPE);
+		colIsPrimary = cursor.getColumnIndexOrThrow(ContactsContract.Data.IS_PRIMARY);
+		colStatusLabel = cursor.getColumnIndexOrThrow(ContactsContract.Data.CONTACT_STATUS_LABEL);
+		colGivenName = cursor.getColumnIndexOrThrow(StructuredName.GIVEN_NAME);
+		colFamilyName = cursor.getColumnIndexOrThrow(StructuredName.FAMILY_NAME);
+		colPrefix = cursor.getColumnIndexOrThrow(StructuredName.PREFIX);
+		colMiddleName = cursor.getColumnIndexOrThrow(StructuredName.MIDDLE_NAME);
+		colSuffix = cursor.getColumnIndexOrThrow(StructuredName.SUFFIX);
+		colData = cursor.getColumnIndexOrThrow(ContactsContract.Data.DATA1);
+		colType = cursor.getColumnIndexOrThrow(Phone.TYPE);
+		colStreet = cursor.getColumnIndexOrThrow(StructuredPostal.STREET);
+		colCity = cursor.getColumnIndexOrThrow(StructuredPostal.CITY);
+		colRegion = cursor.getColumnIndexOrThrow(StructuredPostal.REGION);
+		colPostcode = cursor.getColumnIndexOrThrow(StructuredPostal.POSTCODE);
+		colCountry = cursor.getColumnIndexOrThrow(StructuredPostal.COUNTRY);
+		colImProtocol = cursor.getColumnIndexOrThrow(Im.PROTOCOL);
+		colOrgTitle = cursor.getColumnIndexOrThrow(Organization.TITLE);
+		colOrgDepartment = cursor.getColumnIndexOrThrow(Organization.DEPARTMENT);
+	}
+
+	/*****************************
+	 * row folding
+	 *****************************/
+
+	private static class Builder {
+		final long contactId;
+		final String displayName;
+		ContactName name;
+		String nickname;
+		String note;
+		Date revision;
+		Date birthday;
+		final ArrayList<ContactField> phoneNumbers = new ArrayList<ContactField>();
+		final ArrayList<ContactField> emails = new ArrayList<ContactField>();
+		final ArrayList<ContactAddress> addresses = new ArrayList<ContactAddress>();
+		final ArrayList<ContactField> ims = new ArrayList<ContactField>();
+		final ArrayList<ContactOrganization> organizations = new ArrayList<ContactOrganization>();
+		final ArrayList<String> categories = new ArrayList<String>();
+		final ArrayList<ContactField> urls = new ArrayList<ContactField>();
+
+		Builder(long contactId, String displayName) {
+			this.contactId = contactId;
+			this.displayName = displayName;
+		}
+	}
+
+	private void addRow(Builder builder, Cursor cursor) {
+		String mimeType = cursor.getString(colMimeType);
+		boolean pref = cursor.getInt(colIsPrimary) != 0;
+
+		if(StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			if(builder.name == null) {
+				builder.name = getName(cursor);
+				String label = cursor.getString(colStatusLabel);
+				if(label != null)
+					builder.categories.add(label);
+			}
+		} else if(Nickname.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			if(builder.nickname == null)
+				builder.nickname = cursor.getString(colData);
+		} else if(Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			builder.phoneNumbers.add(getField(cursor, pref, phoneType(cursor.getInt(colType))));
+		} else if(Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			builder.emails.add(getField(cursor, pref, emailType(cursor.getInt(colType))));
+		} else if(StructuredPostal.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			builder.addresses.add(getAddress(cursor, pref));
+		} else if(Im.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			builder.ims.add(getField(cursor, pref, imProtocol(cursor.getInt(colImProtocol))));
+		} else if(Organization.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			builder.organizations.add(getOrganization(cursor, pref));
+		} else if(Event.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			if(builder.birthday == null && cursor.getInt(colType) == Event.TYPE_BIRTHDAY)
+				builder.birthday = parseDate(cursor.getString(colData));
+		} else if(Note.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			if(builder.note == null)
+				builder.note = cursor.getString(colData);
+		} else if(Website.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			ContactField url = getField(cursor, pref, websiteType(cursor.getInt(colType)));
+			if(url.value != null && url.value.length() == 0)
+				url.value = null;
+			builder.urls.add(url);
+		}
+	}
+
+	private Contact build(Builder builder) {
+		ContactImpl contact = new ContactImpl(mgr);
+		contact.id = String.valueOf(builder.contactId);
+		contact.displayName = builder.displayName;
+		contact.name = (builder.name != null) ? builder.name : new ContactName();
+		contact.revision = builder.revision;
+		contact.nickname = builder.nickname;
+		contact.phoneNumbers = builder.phoneNumbers.toArray(new ContactField[builder.phoneNumbers.size()]);
+		contact.emails = builder.emails.toArray(new ContactField[builder.emails.size()]);
+		contact.addresses = builder.addresses.toArray(new ContactAddress[builder.addresses.size()]);
+		contact.ims = builder.ims.toArray(new ContactField[builder.ims.size()]);
+		contact.organizations = builder.organizations.toArray(new ContactOrganization[builder.organizations.size()]);
+		contact.birthday = builder.birthday;
+		contact.note = builder.note;
+		contact.photos = new ContactField[0];							//fetched separately with getPhoto()
+		contact.categories = builder.categories.toArray(new String[builder.categories.size()]);
+		contact.urls = builder.urls.toArray(new ContactField[builder.urls.size()]);
+		contact.gender = null;											//not implemented on android
+		contact.timezone = null;										//not implemented on android
+		return contact;
+	}
+
+	private ContactName getName(Cursor cursor) {
+		ContactName name = new ContactName();
+		name.familyName = cursor.getString(colFamilyName);
+		name.givenName = cursor.getString(colGivenName);
+		name.middleName = cursor.getString(colMiddleName);
+		name.honorificPrefix = cursor.getString(colPrefix);
+		name.honorificSuffix = cursor.getString(colSuffix);
+		name.formatted = join(name.honorificPrefix, name.givenName, name.middleName, name.familyName, name.honorificSuffix);
+		return name;
+	}
+
+	private ContactField getField(Cursor cursor, boolean pref, String type) {
+		ContactField field = new ContactField();
+		field.pref = pref;
+		field.type = type;
+		field.value = cursor.getString(colData);
+		return field;
+	}
+
+	private ContactAddress getAddress(Cursor cursor, boolean pref) {
+		ContactAddress address = new ContactAddress();
+		address.pref = pref;
+		address.type = addressType(cursor.getInt(colType));
+		address.streetAddress = cursor.getString(colStreet);
+		address.locality = cursor.getString(colCity);
+		address.region = cursor.getString(colRegion);
+		address.postalCode = cursor.getString(colPostcode);
+		address.country = cursor.getString(colCountry);
+		address.formatted = join(address.streetAddress, address.locality, address.region, address.postalCode, address.country);
+		return address;
+	}
+
+	private ContactOrganization getOrganization(Cursor cursor, boolean pref) {
+		ContactOrganization organization = new ContactOrganization();
+		organization.pref = pref;
+		organization.type = organizationType(cursor.getInt(colType));
+		organization.name = cursor.getString(colData);
+		organization.title = cursor.getString(colOrgTitle);
+		organization.department = cursor.getString(colOrgDepartment);
+		return organization;
+	}
+
+	/* space-separated concatenation of the non-null parts */
+	private static String join(String... parts) {
+		StringBuilder result = new StringBuilder();
+		for(String part : parts) {
+			if(part == null)
+				continue;
+			if(result.length() > 0)
+				result.append(' ');
+			result.append(part);
+		}
+		return result.toString();
+	}
+
+	/* dates are stored as free text; these are the common forms */
+	private static final String[] DATE_FORMATS = new String[] {"yyyy-MM-dd", "--MM-dd", "d.M.yyyy"};
+
+	private static Date parseDate(String value) {
+		if(value == null)
+			return null;
+		for(String format : DATE_FORMATS) {
+			try {
+				SimpleDateFormat parser = new SimpleDateFormat(format);
+				parser.setLenient(false);
+				return parser.parse(value);
+			} catch(ParseException e) {}
+		}
+		return null;
+	}
+
+	/*****************************
+	 * type mappings
+	 *****************************/
+
+	static String phoneType(int type) {
+		switch(type) {
+			case Phone.TYPE_ASSISTANT:		return "ASSISTANT";
+			case Phone.TYPE_CALLBACK:		return "CALLBACK";
+			case Phone.TYPE_CAR:			return "CAR";
+			case Phone.TYPE_COMPANY_MAIN:	return "CAMPANY_MAIN";
+			case Phone.TYPE_FAX_HOME:		return "FAX_HOME";
+			case Phone.TYPE_FAX_WORK:		return "FAX_WORK";
+			case Phone.TYPE_HOME:			return "HOME";
+			case Phone.TYPE_ISDN:			return "ISDN";
+			case Phone.TYPE_MAIN:			return "MAIN";
+			case Phone.TYPE_MMS:			return "MMS";
+			case Phone.TYPE_MOBILE:			return "MOBILE";
+			case Phone.TYPE_OTHER:			return "OTHER";
+			case Phone.TYPE_OTHER_FAX:		return "OTHER_FAX";
+			case Phone.TYPE_PAGER:			return "PAGER";
+			case Phone.TYPE_RADIO:			return "RADIO";
+			case Phone.TYPE_TELEX:			return "TELEX";
+			case Phone.TYPE_TTY_TDD:		return "TTY_TDD";
+			case Phone.TYPE_WORK:			return "WORK";
+			case Phone.TYPE_WORK_MOBILE:	return "WORK_MOBILE";
+			case Phone.TYPE_WORK_PAGER:		return "WORK_PAGER";
+			default:						return "UNKNOWN";
+		}
+	}
+
+	static String emailType(int type) {
+		switch(type) {
+			case Email.TYPE_HOME:		return "HOME";
+			case Email.TYPE_MOBILE:		return "MOBILE";
+			case Email.TYPE_OTHER:		return "OTHER";
+			case Email.TYPE_WORK:		return "WORK";
+			case Email.TYPE_CUSTOM:		return "CUSTOM";
+			default:					return "UNKNOWN";
+		}
+	}
+
+	static String addressType(int type) {
+		switch(type) {
+			case StructuredPostal.TYPE_HOME:	return "HOME";
+			case StructuredPostal.TYPE_OTHER:	return "OTHER";
+			case StructuredPostal.TYPE_WORK:	return "WORK";
+			default:							return "UNKNOWN";
+		}
+	}
+
+	static String imProtocol(int protocol) {
+		switch(protocol) {
+			case Im.PROTOCOL_AIM:			return "AIM";
+			case Im.PROTOCOL_CUSTOM:		return "CUSTOM";
+			case Im.PROTOCOL_GOOGLE_TALK:	return "GOOGLE_TALK";
+			case Im.PROTOCOL_ICQ:			return "ICQ";
+			case Im.PROTOCOL_JABBER:		return "JABBER";
+			case Im.PROTOCOL_MSN:			return "MSN";
+			case Im.PROTOCOL_QQ:			return "QQ";
+			case Im.PROTOCOL_SKYPE:			return "SKYPE";
+			case Im.PROTOCOL_YAHOO:			return "YAHOO";
+			default:						return null;
+		}
+	}
+
+	static String organizationType(int type) {
+		switch(type) {
+			case Organization.TYPE_CUSTOM:	return "CUSTOM";
+			case Organization.TYPE_OTHER:	return "OTHER";
+			case Organization.TYPE_WORK:	return "WORK";
+			default:						return "UNKNOWN";
+		}
+	}
+
+	static String websiteType(int type) {
+		switch(type) {
+			case Website.TYPE_CUSTOM:		return "CUSTOM";
+			case Website.TYPE_BLOG:			return "BLOG";
+			case Website.TYPE_FTP:			return "FTP";
+			case Website.TYPE_HOME:			return "HOME";
+			case Website.TYPE_HOMEPAGE:		return "HOMEPAGE";
+			case Website.TYPE_OTHER:		return "OTHER";
+			case Website.TYPE_PROFILE:		return "PROFILE";
+			case Website.TYPE_WORK:			return "WORK";
+			default:						return "UNKNOWN";
+		}
+	}
+}
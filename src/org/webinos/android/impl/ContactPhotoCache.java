@@ -0,0 +1,278 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011 Istituto Superiore Mario Boella (ISMB)
+******************************************************************************/
+
+package org.webinos.android.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.util.Log;
+
+/**
+ * Downscaled JPEG renditions of contact photos, cached in memory and on
+ * disk. Entries are keyed by the contact's photo row and its data version,
+ * so an updated photo is never served from a stale entry.
+ * (android.util.LruCache is not available at our minimum API level.)
+ */
+class ContactPhotoCache {
+	private static final String TAG = "org.webinos.android.impl.ContactPhotoCache";
+
+	/* largest width or height of a cached photo */
+	static final int MAX_DIMENSION = 256;
+	private static final int JPEG_QUALITY = 85;
+	private static final long MAX_MEMORY_BYTES = 1024 * 1024;
+	private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+	private static final String EXTENSION = ".jpg";
+
+	/* the full-size photo directory of a contact; ContactsContract.Contacts.Photo.DISPLAY_PHOTO from API level 14 */
+	private static final String DISPLAY_PHOTO = "display_photo";
+
+	private final ContentResolver contentResolver;
+	private final File dir;
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(32, 0.75f, true);
+	private long memoryBytes;
+
+	ContactPhotoCache(Context ctx) {
+		contentResolver = ctx.getContentResolver();
+		dir = new File(ctx.getCacheDir(), "contact_photos");
+	}
+
+	/**
+	 * Get the photo of a contact.
+	 * @return the JPEG-encoded photo, or null if the contact has no photo
+	 */
+	byte[] get(long contactId) throws IOException {
+		/* find the contact's photo row and its current version */
+		long photoId, version;
+		Cursor cursor = contentResolver.query(ContactsContract.Data.CONTENT_URI,
+				new String[] {ContactsContract.Data._ID, ContactsContract.Data.DATA_VERSION},
+				ContactsContract.Data.CONTACT_ID + " = ? AND " + ContactsContract.Data._ID + " = " + ContactsContract.Data.PHOTO_ID,
+				new String[] {String.valueOf(contactId)}, null);
+		if(cursor == null)
+			return null;
+		try {
+			if(!cursor.moveToFirst())
+				return null;
+			photoId = cursor.getLong(0);
+			version = cursor.getLong(1);
+		} finally {
+			cursor.close();
+		}
+
+		String key = contactId + "-" + photoId + "-" + version;
+		byte[] result = getMemory(key);
+		if(result != null)
+			return result;
+		File file = new File(dir, key + EXTENSION);
+		try {
+			result = readFile(file);
+			file.setLastModified(System.currentTimeMillis());
+			putMemory(key, result);
+			return result;
+		} catch(FileNotFoundException e) {
+			/* not cached on disk */
+		}
+
+		byte[] source = readSource(contactId, photoId);
+		if(source == null)
+			return null;
+		result = scale(source);
+		if(result == null)
+			return null;
+		putMemory(key, result);
+		writeFile(contactId, file, result);
+		return result;
+	}
+
+	/*****************************
+	 * memory cache
+	 *****************************/
+
+	private synchronized byte[] getMemory(String key) {
+		return memory.get(key);
+	}
+
+	private synchronized void putMemory(String key, byte[] data) {
+		byte[] previous = memory.put(key, data);
+		if(previous != null)
+			memoryBytes -= previous.length;
+		memoryBytes += data.length;
+		Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+		while(memoryBytes > MAX_MEMORY_BYTES && it.hasNext()) {
+			memoryBytes -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	/*****************************
+	 * disk cache
+	 *****************************/
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return readFully(in, (int)file.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	/* write a new entry, removing any earlier versions for the same contact,
+	 * then evict the least recently used entries if over the size limit */
+	private synchronized void writeFile(long contactId, File file, byte[] data) {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			return;
+		String prefix = contactId + "-";
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File existing : files)
+				if(existing.getName().startsWith(prefix))
+					existing.delete();
+		}
+
+		File tmpFile = new File(dir, file.getName() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmpFile);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if(!tmpFile.renameTo(file))
+				tmpFile.delete();
+		} catch(IOException e) {
+			Log.v(TAG, "Unable to write cached photo; exception: " + e);
+			tmpFile.delete();
+			return;
+		}
+
+		files = dir.listFiles();
+		if(files == null)
+			return;
+		long total = 0;
+		for(File existing : files)
+			total += existing.length();
+		if(total <= MAX_DISK_BYTES)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for(int i = 0; i < files.length && total > MAX_DISK_BYTES; i++) {
+			total -= files[i].length();
+			files[i].delete();
+		}
+	}
+
+	/*****************************
+	 * decoding
+	 *****************************/
+
+	/* the full-size photo if there is one, otherwise the thumbnail stored in the photo row */
+	private byte[] readSource(long contactId, long photoId) throws IOException {
+		if(Build.VERSION.SDK_INT >= 14) {
+			Uri contactUri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
+			try {
+				InputStream in = contentResolver.openInputStream(Uri.withAppendedPath(contactUri, DISPLAY_PHOTO));
+				if(in != null) {
+					try {
+						return readFully(in, 32 * 1024);
+					} finally {
+						in.close();
+					}
+				}
+			} catch(FileNotFoundException e) {
+				/* no full-size photo */
+			}
+		}
+		Cursor cursor = contentResolver.query(ContactsContract.Data.CONTENT_URI,
+				new String[] {Photo.PHOTO},
+				ContactsContract.Data._ID + " = ?",
+				new String[] {String.valueOf(photoId)}, null);
+		if(cursor == null)
+			return null;
+		try {
+			return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/* decode with a sample size that bounds the decoded size, then scale and encode as JPEG */
+	private static byte[] scale(byte[] source) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(source, 0, source.length, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		int sampleSize = 1;
+		while(Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= MAX_DIMENSION)
+			sampleSize *= 2;
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(source, 0, source.length, options);
+		if(bitmap == null)
+			return null;
+
+		int width = bitmap.getWidth(), height = bitmap.getHeight();
+		if(width > MAX_DIMENSION || height > MAX_DIMENSION) {
+			float ratio = (float)MAX_DIMENSION / Math.max(width, height);
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(width * ratio), Math.round(height * ratio), true);
+			if(scaled != bitmap) {
+				bitmap.recycle();
+				bitmap = scaled;
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+	private static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(sizeHint, 1024));
+		byte[] buf = new byte[8 * 1024];
+		int count;
+		while((count = in.read(buf)) != -1)
+			out.write(buf, 0, count);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ *  Code contributed to the webinos project
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Copyright 2011 Telecom Italia SpA
+ * 
+ ******************************************************************************/
+
+package org.webinos.android.impl;
+
+import java.util.List;
+
+import android.content.Context;
+
+/**
+ * A MessageFilter compiled into a query over one of the messaging
+ * providers. Matching messages are read in date order, a page at a time.
+ */
+abstract class MessageQuery {
+
+	/* true if the filter cannot match any message, so no query is needed */
+	abstract boolean isEmpty();
+
+	abstract String getSelection();
+
+	/**
+	 * Read one page of results.
+	 * @param limit the maximum number of messages
+	 * @param offset the number of matching messages to skip
+	 * @return the messages; fewer than limit if there are no more
+	 */
+	abstract List<MessageImpl> read(Context ctx, int limit, int offset);
+}
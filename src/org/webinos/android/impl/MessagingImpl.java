@@ -34,22 +34,25 @@ import android.net.Uri;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.meshpoint.anode.AndroidContext;
 import org.meshpoint.anode.bridge.Env;
 import org.meshpoint.anode.module.IModule;
 import org.meshpoint.anode.module.IModuleContext;
-import org.w3c.dom.ObjectArray;
 import org.webinos.api.DeviceAPIError;
 import org.webinos.api.ErrorCallback;
 import org.webinos.api.PendingOperation;
 import org.webinos.api.messaging.FindMessagesSuccessCallback;
 import org.webinos.api.messaging.Message;
 import org.webinos.api.messaging.MessageFilter;
+import org.webinos.api.messaging.MessageFindOptions;
 import org.webinos.api.messaging.MessageSendCallback;
 import org.webinos.api.messaging.MessagingManager;
 import org.webinos.api.messaging.OnIncomingMessage;
@@ -60,10 +63,35 @@ public class MessagingImpl extends MessagingManager implements IModule {
 
 	private Context androidContext;
 	private	SmsManager	smsManager;
-	private Map<Integer, SmsReceiver> smsReceiverList;
-	private int counter;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	/* incoming SMS subscriptions, all served by a single receiver */
+	private final ConcurrentHashMap<Integer, OnIncomingMessage> smsSubscriptions = new ConcurrentHashMap<Integer, OnIncomingMessage>();
+	private SmsReceiver smsReceiver;
+
+	/* sends awaiting a sent result, keyed by request id, all served by a single receiver */
+	private static final String SMS_SENT = "org.webinos.messaging.SMS_SENT";
+	private final ConcurrentHashMap<Integer, SmsSender> pendingSends = new ConcurrentHashMap<Integer, SmsSender>();
+	private final AtomicInteger requestCounter = new AtomicInteger();
+	/* the request code of each SMS_SENT PendingIntent */
+	private final AtomicInteger sentIntentCounter = new AtomicInteger();
+	private SmsResponseReceiver smsResponseReceiver;
 
 	private static final String LABEL = "org.webinos.android.impl.MessagingImpl";
+
+	/* number of messages read per provider query */
+	private static final int SMS_PAGE_SIZE = 200;
+	private static final int MMS_PAGE_SIZE = 50;
+
+	/* finds are run on a small shared pool rather than a thread per request */
+	private static final int FIND_THREADS = 2;
+	private static final ExecutorService findExecutor = Executors.newFixedThreadPool(FIND_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "MessagingManager find");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	
 	/*****************************
 	 * MessagingManager methods
@@ -130,28 +158,26 @@ public class MessagingImpl extends MessagingManager implements IModule {
 	@Override
 	public PendingOperation findMessages(
 			FindMessagesSuccessCallback successCallback,
-			ErrorCallback errorCallback, MessageFilter filter)
+			ErrorCallback errorCallback, MessageFilter filter, MessageFindOptions options)
 			throws DeviceAPIError {
 		Log.v(LABEL, "findMessages");
 
-		MessagingRunnable smsFinder = new SmsFinder(successCallback, errorCallback, filter);
-		Thread t = new Thread(smsFinder);
-		t.start();
-
-		//MessagingPendingOperation pOp = new MessagingPendingOperation(t, smsFinder);
-		//pOp.setData(t, smsFinder);
-		//return pOp;
-		return new MessagingPendingOperation(t, smsFinder);
+		MessagingRunnable smsFinder = new SmsFinder(successCallback, errorCallback, filter, options);
+		return new MessagingPendingOperation(findExecutor.submit(smsFinder), smsFinder);
 	}
 
 	@Override
 	public int onSMS(OnIncomingMessage messageHandler) throws DeviceAPIError {
-		counter++;
-		Log.v(LABEL, "onSMS - "+counter);
-		SmsReceiver smsReceiver = new SmsReceiver(messageHandler);
-		androidContext.registerReceiver(smsReceiver, new IntentFilter("android.provider.Telephony.SMS_RECEIVED"));
-		smsReceiverList.put(counter, smsReceiver);
-		return counter;
+		int id = counter.incrementAndGet();
+		Log.v(LABEL, "onSMS - "+id);
+		smsSubscriptions.put(id, messageHandler);
+		synchronized(this) {
+			if(smsReceiver == null) {
+				smsReceiver = new SmsReceiver();
+				androidContext.registerReceiver(smsReceiver, new IntentFilter("android.provider.Telephony.SMS_RECEIVED"));
+			}
+		}
+		return id;
 	}
 
 	@Override
@@ -175,10 +201,13 @@ public class MessagingImpl extends MessagingManager implements IModule {
 	@Override
 	public void unsubscribe(int subscriptionHandler) throws DeviceAPIError {
 		Log.v(LABEL, "unsubscribe - "+subscriptionHandler);
-		SmsReceiver smsReceiver = smsReceiverList.get(subscriptionHandler);
-		if(smsReceiver != null) {
-			androidContext.unregisterReceiver(smsReceiver);
-			smsReceiverList.remove(subscriptionHandler);
+		if(smsSubscriptions.remove(subscriptionHandler) != null) {
+			synchronized(this) {
+				if(smsSubscriptions.isEmpty() && smsReceiver != null) {
+					androidContext.unregisterReceiver(smsReceiver);
+					smsReceiver = null;
+				}
+			}
 		}
 	}
 
@@ -190,8 +219,6 @@ public class MessagingImpl extends MessagingManager implements IModule {
 		Log.v(LABEL, "startModule");
 		androidContext = ((AndroidContext)ctx).getAndroidContext();
 		smsManager = SmsManager.getDefault();
-		smsReceiverList = new HashMap<Integer, SmsReceiver>();
-		counter = 0;
 		return this;
 	}
 
@@ -199,10 +226,16 @@ public class MessagingImpl extends MessagingManager implements IModule {
 	public void stopModule() {
 		//TODO stop all findMessages and sendMessages
 		Log.v(LABEL, "stopModule");
-		if(!smsReceiverList.isEmpty()) {
-			Set<Integer> listenersId = smsReceiverList.keySet();
-			for(Integer i: listenersId) {
-				androidContext.unregisterReceiver(smsReceiverList.get(i));
+		smsSubscriptions.clear();
+		pendingSends.clear();
+		synchronized(this) {
+			if(smsReceiver != null) {
+				androidContext.unregisterReceiver(smsReceiver);
+				smsReceiver = null;
+			}
+			if(smsResponseReceiver != null) {
+				androidContext.unregisterReceiver(smsResponseReceiver);
+				smsResponseReceiver = null;
 			}
 		}
 	}
@@ -212,9 +245,10 @@ public class MessagingImpl extends MessagingManager implements IModule {
 		private MessageSendCallback successCallback;
 		private ErrorCallback errorCallback;
 		private Message message;
+		private int requestId;
 		private int smsCounter;
-		private SmsResponseReceiver smsResponseReceiver;
-		private String SMS_SENT;
+		private int resultCounter;
+		private int errorCounter;
 		private ArrayList<String> bodyParts;
 		private boolean stopped;
 
@@ -222,10 +256,12 @@ public class MessagingImpl extends MessagingManager implements IModule {
 			successCallback = succCallback;
 			errorCallback = errCallback;
 			message = msg;
+			requestId = requestCounter.incrementAndGet();
 			smsCounter = 0;
+			resultCounter = 0;
+			errorCounter = 0;
 			stopped = false;
-			smsResponseReceiver = new SmsResponseReceiver(successCallback, errorCallback, message.to.getLength(), this);
-			Log.v(LABEL, "SmsSender constructed");
+			Log.v(LABEL, "SmsSender constructed - request "+requestId);
 		}
 
 		public synchronized boolean isStopped() {
@@ -237,46 +273,21 @@ public class MessagingImpl extends MessagingManager implements IModule {
 		}
 		
 		public void run() {
-			
-			SMS_SENT = "org.webinos.messaging.SMS_SENT_"+(int)Thread.currentThread().getId();
-			androidContext.registerReceiver(smsResponseReceiver, new IntentFilter(SMS_SENT));
-			bodyParts = smsManager.divideMessage(message.body);
-			Log.v(LABEL, "SmsSender run - number of parts is "+bodyParts.size()+" - SMS_SENT is "+SMS_SENT);
-			sendNextMessage();
-			
-			/*
-			ArrayList<String> bodyParts = smsManager.divideMessage(message.body);
-			Log.v(LABEL, "SmsSender run - number of parts is "+bodyParts.size());
-			for(int i=0; i<message.to.getLength(); i++) {
-				Log.v(LABEL, "SmsSender run - 04 ("+i+")");
-				try {
-					Intent intent=new Intent(SMS_SENT);
-					intent.putExtra("rec", message.to.getElement(i));
-					PendingIntent pnd = PendingIntent.getBroadcast(androidContext, 0, intent, 0);
-					if(bodyParts.size() == 1) {
-						smsManager.sendTextMessage(message.to.getElement(i), null, message.body, pnd, null);
-					}
-					else {
-						ArrayList<PendingIntent> pndList = new ArrayList<PendingIntent>();
-						for(int j=0;j<bodyParts.size()-1;j++){
-							pndList.add(null);
-						}
-						pndList.add(pnd);
-						smsManager.sendMultipartTextMessage(message.to.getElement(i), null, bodyParts, pndList, null);
-					}
-				}
-//				catch(IllegalArgumentException e) {
-				catch(Exception e) {
-					Log.v(LABEL, "SmsSender run - error "+e);
-					smsResponseReceiver.errorCaught(message.to.getElement(i));
+			pendingSends.put(requestId, this);
+			synchronized(MessagingImpl.this) {
+				if(smsResponseReceiver == null) {
+					smsResponseReceiver = new SmsResponseReceiver();
+					androidContext.registerReceiver(smsResponseReceiver, new IntentFilter(SMS_SENT));
 				}
 			}
-			*/
+			bodyParts = smsManager.divideMessage(message.body);
+			Log.v(LABEL, "SmsSender run - number of parts is "+bodyParts.size()+" - request is "+requestId);
+			sendNextMessage();
 		}
 		
 		public void sendFinished() {
 			Log.v(LABEL, "SmsSender - sendFinished");
-			androidContext.unregisterReceiver(smsResponseReceiver);
+			pendingSends.remove(requestId);
 		}
 		
 		public void sendNextMessage() {
@@ -287,15 +298,19 @@ public class MessagingImpl extends MessagingManager implements IModule {
 				return;
 			}
 			if(smsCounter<message.to.getLength()) {
+				String rec = message.to.getElement(smsCounter);
 				try {
-					//TODO Investigate why in case of multiple recipients the Extra of the intent is not correct...
+					/* the request code keeps the PendingIntent of each send distinct,
+					 * and any PendingIntent left with the same code by an earlier
+					 * process is cancelled, so that each carries its own extras */
 					Intent intent=new Intent(SMS_SENT);
-					intent.putExtra("rec", message.to.getElement(smsCounter));
+					intent.putExtra("request", requestId);
+					intent.putExtra("rec", rec);
 					intent.putExtra("body", message.body);
-					Log.v(LABEL, "intent created with rec = "+intent.getExtras().getString("rec"));
-					PendingIntent pnd = PendingIntent.getBroadcast(androidContext, 0, intent, 0);
+					PendingIntent pnd = PendingIntent.getBroadcast(androidContext, sentIntentCounter.incrementAndGet(), intent,
+							PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_CANCEL_CURRENT);
 					if(bodyParts.size() == 1) {
-						smsManager.sendTextMessage(message.to.getElement(smsCounter), null, message.body, pnd, null);
+						smsManager.sendTextMessage(rec, null, message.body, pnd, null);
 					}
 					else {
 						ArrayList<PendingIntent> pndList = new ArrayList<PendingIntent>();
@@ -303,45 +318,70 @@ public class MessagingImpl extends MessagingManager implements IModule {
 							pndList.add(null);
 						}
 						pndList.add(pnd);
-						smsManager.sendMultipartTextMessage(message.to.getElement(smsCounter), null, bodyParts, pndList, null);
+						smsManager.sendMultipartTextMessage(rec, null, bodyParts, pndList, null);
 					}
 				}
-//				catch(IllegalArgumentException e) {
 				catch(Exception e) {
 					Log.v(LABEL, "SmsSender run - error "+e);
-					smsResponseReceiver.errorCaught(message.to.getElement(smsCounter));
+					sendResult(1, rec);
 				}
 
 				smsCounter++;
 			}
 		}
+
+		/* called with the sent result for one recipient */
+		private void sendResult(int res, String recipient) {
+			resultCounter++;
+			errorCounter+=res;
+			Log.v(LABEL, "SmsSender sendResult - sms n "+resultCounter+" - err n "+errorCounter);
+			if(resultCounter == message.to.getLength()) {
+				sendFinished();
+				if(errorCounter==0) {
+					Log.v(LABEL, "SmsSender sendResult - successCallback");
+					successCallback.onsuccess();
+				}
+				else if(errorCallback!=null) {
+					Log.v(LABEL, "SmsSender sendResult - errorCallback");
+					errorCallback.onerror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR));
+				}
+			}
+			else {
+				if(res==0) {
+					Log.v(LABEL, "SmsSender sendResult - msgSendSuccess");
+					successCallback.onmessagesendsuccess(recipient);
+				}
+				else {
+					Log.v(LABEL, "SmsSender sendResult - msgSendError");
+					successCallback.onmessagesenderror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR), recipient);
+				}
+				sendNextMessage();
+			}
+		}
 	}
 	
 	
-	//SMS Response receiver
+	//SMS Response receiver, shared by all sends; results are matched to their send by request id
 	class SmsResponseReceiver extends BroadcastReceiver {
 		
-		private MessageSendCallback successCallback;
-		private ErrorCallback errorCallback;
-		private int smsNumber;
-		private int smsCounter;
-		private int errorCounter;
-		private SmsSender smsSender;
-		
 		@Override
 		public void onReceive(Context ctx, Intent intent) {
-			if(smsSender.isStopped()) {
-				Log.v(LABEL, "SmsResponseReceiver onReceive - stopped");
-				smsSender.sendNextMessage();
-				return;
-			}
 			try {
-				String rec=null;
-				String body=null;
 				Bundle extras = intent.getExtras();
-				if(extras!=null){
-					rec=extras.getString("rec");
-					body=extras.getString("body");
+				if(extras==null)
+					return;
+				int requestId = extras.getInt("request", 0);
+				String rec=extras.getString("rec");
+				String body=extras.getString("body");
+				SmsSender smsSender = pendingSends.get(requestId);
+				if(smsSender == null) {
+					Log.v(LABEL, "SmsResponseReceiver - no send for request "+requestId);
+					return;
+				}
+				if(smsSender.isStopped()) {
+					Log.v(LABEL, "SmsResponseReceiver onReceive - stopped");
+					smsSender.sendNextMessage();
+					return;
 				}
 				switch(getResultCode()) {
 				case Activity.RESULT_OK:
@@ -351,14 +391,12 @@ public class MessagingImpl extends MessagingManager implements IModule {
 					msgData.put("address", rec);
 					msgData.put("body", body);
 					msgData.put("read", 1);
-					Log.v(LABEL, "SmsResponseReceiver - 05");
 					androidContext.getContentResolver().insert(Uri.parse("content://sms/sent"), msgData);
-					Log.v(LABEL, "SmsResponseReceiver - 06");
-					sendFinished(0, rec);
+					smsSender.sendResult(0, rec);
 					break;
 				default:
 					Log.v(LABEL, "SmsResponseReceiver - Received intent error ("+getResultCode()+") for rec "+rec);
-					sendFinished(1, rec);
+					smsSender.sendResult(1, rec);
 					break;
 				}
 			}
@@ -366,50 +404,6 @@ public class MessagingImpl extends MessagingManager implements IModule {
 				Log.v(LABEL, "SmsResponseReceiver - onReceive exception "+e.getMessage());
 			}
 		}
-		
-		private SmsResponseReceiver(MessageSendCallback successCbk, ErrorCallback errorCbk, int smsNum, SmsSender sender) {
-			Log.v(LABEL, "SmsResponseReceiver constructor - succCbk: "+successCbk+" - errCbk: "+errorCbk+" - thread: "+(int)Thread.currentThread().getId());
-			successCallback = successCbk;
-			errorCallback = errorCbk;
-			smsNumber = smsNum;
-			smsCounter = 0;
-			errorCounter = 0;
-			smsSender = sender;
-		}
-		
-		public void errorCaught(String recipient) {
-			sendFinished(1, recipient);
-		}
-		
-		private void sendFinished(int res, String recipient) {
-			smsCounter++;
-			errorCounter+=res;
-			//TODO save the message in sent folder
-			Log.v(LABEL, "SmsResponseReceiver sendFinished - sms n "+smsCounter+" - err n "+errorCounter);
-			if(smsCounter == smsNumber) {
-				smsSender.sendFinished();
-				if(errorCounter==0) {
-					Log.v(LABEL, "SmsResponseReceiver sendFinished - successCallback");
-					successCallback.onsuccess();
-				}
-				else {
-					Log.v(LABEL, "SmsResponseReceiver sendFinished - errorCallback");
-					errorCallback.onerror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR));
-				}
-			}
-			else {
-				if(res==0) {
-					Log.v(LABEL, "SmsResponseReceiver sendFinished - msgSendSuccess");
-					successCallback.onmessagesendsuccess(recipient);
-				}
-				else {
-					Log.v(LABEL, "SmsResponseReceiver sendFinished - msgSendError");
-					successCallback.onmessagesenderror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR), recipient);
-				}
-				smsSender.sendNextMessage();
-			}
-		}
-		
 	}
 	
 	class SmsFinder implements MessagingRunnable {
@@ -419,11 +413,22 @@ public class MessagingImpl extends MessagingManager implements IModule {
 		private ErrorCallback errorCallback;
 		private MessageFilter filter;
 		private boolean stopped;
+		private int count;
+		private int offset;
+		private boolean ascending;
+		private int pageSize;
+		private List<Message> page = new ArrayList<Message>();
 		
-		private SmsFinder(FindMessagesSuccessCallback successCallback, ErrorCallback errorCallback, MessageFilter filter) {
+		private SmsFinder(FindMessagesSuccessCallback successCallback, ErrorCallback errorCallback, MessageFilter filter, MessageFindOptions options) {
 			this.successCallback = successCallback;
 			this.errorCallback = errorCallback;
 			this.filter = filter;
+			if(options != null) {
+				count = (options.count != null && options.count > 0) ? options.count : 0;
+				offset = (options.offset != null && options.offset > 0) ? options.offset : 0;
+				ascending = (options.ascending != null && options.ascending);
+				pageSize = (options.pageSize != null && options.pageSize > 0) ? options.pageSize : 0;
+			}
 		}
 		
 		public synchronized boolean isStopped() {
@@ -480,262 +485,87 @@ public class MessagingImpl extends MessagingManager implements IModule {
 			return false;
 		}
 		
-		private boolean searchDir(int dir) {
-			if(filter==null)
-				return true;
-			else if(filter.folder==null)
-				return true;
-			else for(int i=0; i<filter.folder.length; i++) {
-				if(filter.folder[i]==dir)
-					return true;
-			}
-			return false;
-		}
-
-		private String getFilterString(int folder) {
-			Log.v(LABEL, "getFilterString");
-			if(filter==null)
-				return null;
-			String res=new String();
-			boolean initialized=false;
-			if(filter.id!=null){
-				Log.v(LABEL, "getFilterString - id");
-				if(initialized)
-					res+=" AND ";
-				res+="_id="+filter.id;
-				initialized=true;
+		/* read the matching messages of each requested type a page at a time,
+		 * merging them in date order; if only one type is searched, offset and
+		 * count are applied by its query, otherwise the merge skips offset
+		 * messages and each query reads no more than offset + count */
+		private void getMessages() {
+			ArrayList<MessageSource> sources = new ArrayList<MessageSource>();
+			if(searchSms())
+				sources.add(new MessageSource(new SmsQuery(filter, ascending), SMS_PAGE_SIZE));
+			if(searchMms())
+				sources.add(new MessageSource(new MmsQuery(filter, ascending), MMS_PAGE_SIZE));
+			for(int i = sources.size() - 1; i >= 0; i--) {
+				if(sources.get(i).query.isEmpty())
+					sources.remove(i);
+				else
+					Log.v(LABEL, "smsFinder getMessages - selection is "+sources.get(i).query.getSelection());
 			}
-			if(filter.from!=null){
-				Log.v(LABEL, "getFilterString - from");
-				if(initialized)
-					res+=" AND ";
-				if(folder==FOLDER_INBOX) {
-					res+="address=\'"+filter.from+"\'";
-				}
-				else {
-					res+="address=\'00000000\'";
-				}
-				initialized=true;
+			boolean merged = sources.size() > 1;
+			int skip = merged ? offset : 0;
+			for(MessageSource source : sources) {
+				source.offset = merged ? 0 : offset;
+				source.remaining = (count > 0) ? (merged ? offset + count : count) : -1;
 			}
-			if(filter.to!=null) {
-				Log.v(LABEL, "getFilterString - to");
-				if(initialized)
-					res+=" AND ";
-				if(folder==FOLDER_INBOX) {
-					Log.v(LABEL, "getFilterString - to - inbox");
-					res+="address=\'00000000\'";
-				}
-				else {
-					if(filter.to.length == 1) {
-						Log.v(LABEL, "getFilterString - to - 1");
-						res+="address=\'"+filter.to[0]+"\'";
-					}
+
+			int remaining = (count > 0) ? count : -1;
+			while(remaining != 0 && !isStopped()) {
+				MessageSource next = null;
+				for(MessageSource source : sources) {
+					MessageImpl msg = source.peek(androidContext);
+					if(msg == null)
+						continue;
+					if(next == null)
+						next = source;
 					else {
-						Log.v(LABEL, "getFilterString - to - >1");
-						res+="(address=\'"+filter.to[0]+"\'";
-						for(int i=1;i<filter.to.length;i++) {
-							res+=" OR address=\'"+filter.to[i]+"\'";
-						}
-						res+=")";
+						long diff = msg.timestamp.getTime() - next.peek(androidContext).timestamp.getTime();
+						if(ascending ? diff < 0 : diff > 0)
+							next = source;
 					}
 				}
-				initialized=true;
-			}
-			if(filter.body!=null){
-				Log.v(LABEL, "getFilterString - body");
-				if(initialized)
-					res+=" AND ";
-				res+="body=\'"+filter.body+"\'";
-				initialized=true;
-			}
-			if(filter.isRead!=null){
-				Log.v(LABEL, "getFilterString - isRead");
-				if(initialized)
-					res+=" AND ";
-				res+="read=";
-				if(filter.isRead){
-					res+="1";
-				}
-				else {
-					res+="0";
-				}
-				initialized=true;
-			}
-			if(initialized)
-				return res;
-			else
-				return null;
-		}
-		
-		private Uri getUri(int type, int folder) {
-			Uri res=null;
-			if (type==TYPE_SMS) {
-				switch(folder) {
-				case FOLDER_INBOX:
-					res=Uri.parse("content://sms/inbox");
-					break;
-				case FOLDER_OUTBOX:
-					res=Uri.parse("content://sms/outbox");
-					break;
-				case FOLDER_SENTBOX:
-					res=Uri.parse("content://sms/sent");
-					break;
-				case FOLDER_DRAFTS:
-					res=Uri.parse("content://sms/draft");
+				if(next == null)
 					break;
+				MessageImpl msg = next.take();
+				if(skip > 0) {
+					--skip;
+					continue;
 				}
+				add(msg);
+				if(remaining > 0)
+					--remaining;
 			}
-			else if(type==TYPE_MMS) {
-				res=Uri.parse("content://mms/part");
-			}
-			return res;
 		}
-		
-		private boolean checkTimestamp(Date timestamp) {
-			if(filter==null)
-				return true;
-			Log.v(LABEL, "checkTimestamp - timestamp is "+timestamp+", start is "+filter.startTimestamp+", end is "+filter.endTimestamp);
-			if(filter.startTimestamp!=null) {
-				if(timestamp.before(filter.startTimestamp))
-					return false;
-			}
-			if(filter.endTimestamp!=null) {
-				if(timestamp.after(filter.endTimestamp))
-					return false;
-			}
-			return true;
-		}
-		
-		private List<Message> getSms(List<Message> list, int folder) {
-			String filterString=getFilterString(folder);
-			Log.v(LABEL, "smsFinder getSms - filter string is "+filterString);
-//			Uri searchUri=getUri(TYPE_SMS, folder);
-			Cursor cursor = androidContext.getContentResolver().query(getUri(TYPE_SMS, folder), new String[] { "_id", "thread_id", "address", "date", "read", "status", "type", "body" }, filterString, null,null);
-			MessageImpl msg;
-			Log.v(LABEL, "smsFinder getSms - 03 - messages found "+cursor.getCount());
-			cursor.moveToFirst();
-			for(int i=0; i<cursor.getCount(); i++) {
-				Log.v(LABEL, "smsFinder getSms - iteration n "+i);
-				msg = new MessageImpl();
-				msg.setContext(androidContext);
-				msg.timestamp = new Date(cursor.getLong(cursor.getColumnIndex("date")));
-				if(checkTimestamp(msg.timestamp)) {
-					msg.type = TYPE_SMS;
-					msg.id = cursor.getString(cursor.getColumnIndex("_id"));
-					msg.body = cursor.getString(cursor.getColumnIndex("body"));
-					msg.isRead = (cursor.getInt(cursor.getColumnIndex("read"))==0) ? false : true;
-					ObjectArray<String> toTmp;
-					Log.v(LABEL, "smsFinder getSms - 04");
-					switch(cursor.getInt(cursor.getColumnIndex("type"))) {
-					case 1:
-						Log.v(LABEL, "smsFinder getSms - 041");
-						msg.folder = FOLDER_INBOX;
-						msg.from = cursor.getString(cursor.getColumnIndex("address"));
-						toTmp = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{"me"});
-						msg.to = toTmp;
-						list.add(msg);
-						break;
-					case 2:
-						Log.v(LABEL, "smsFinder getSms - 042");
-						msg.folder = FOLDER_SENTBOX;
-						msg.from = "me";
-						toTmp = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{cursor.getString(cursor.getColumnIndex("address"))});
-						msg.to = toTmp;
-						list.add(msg);
-						break;
-					case 3:
-						Log.v(LABEL, "smsFinder getSms - 043");
-						msg.folder = FOLDER_DRAFTS;
-						msg.from = "me";
-						toTmp = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{cursor.getString(cursor.getColumnIndex("address"))});
-						msg.to = toTmp;
-						list.add(msg);
-						break;
-					case 4:
-						//TODO verify if outbox is type 4... 
-						Log.v(LABEL, "smsFinder getSms - 044");
-						msg.folder = FOLDER_OUTBOX;
-						msg.from = "me";
-						toTmp = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{cursor.getString(cursor.getColumnIndex("address"))});
-						msg.to = toTmp;
-						list.add(msg);
-						break;
-					default:
-						//unknown type: skip the message
-						Log.v(LABEL, "smsFinder getSms - error - unexpected type of dir "+cursor.getInt(cursor.getColumnIndex("type")));
-						break;
-					}
-				}
-				cursor.moveToNext();
-			}
-			Log.v(LABEL, "smsFinder getSms - 05");
-			return list;
-		}
-
-		private List<Message> getMms(List<Message> list, int folder) {
-			Cursor cursor = androidContext.getContentResolver().query(Uri.parse("content://mms"), null, null, null,null);
-			Log.v(LABEL, "smsFinder getMms - 03 - messages found "+cursor.getCount());
-			cursor.moveToFirst();
-			for(int i=0; i<cursor.getCount(); i++) {
-				String id = cursor.getString(cursor.getColumnIndex("_id"));
-				Log.v(LABEL, "Messaggio "+i);
-				Log.v(LABEL, "id: "+id);
-				Log.v(LABEL, "date: "+cursor.getString(cursor.getColumnIndex("date")));
-				Log.v(LABEL, "read: "+cursor.getString(cursor.getColumnIndex("read")));
-				Log.v(LABEL, "seen: "+cursor.getString(cursor.getColumnIndex("seen")));
-				Cursor cursor2 = androidContext.getContentResolver().query(Uri.parse("content://mms/"+id+"/addr"), null, null, null,null);
-				Log.v(LABEL, "campi addr; righe "+cursor2.getCount()+" - colonne "+cursor2.getColumnCount());
-				cursor2.moveToFirst();
-				for (int k=0; k<cursor2.getCount(); k++) {
-					for(int j=0; j<cursor2.getColumnCount(); j++) {
-						Log.v(LABEL, cursor2.getColumnName(j)+": "+cursor2.getString(j));
-					}
-					cursor2.moveToNext();
-				}
-				cursor.moveToNext();
+
+		/* add a message to the current page, delivering the page once it
+		 * is full; nothing is delivered once the operation is cancelled */
+		private void add(Message msg) {
+			page.add(msg);
+			if(pageSize > 0 && page.size() == pageSize) {
+				if(!isStopped())
+					successCallback.onSuccess(page.toArray(new MessageImpl[pageSize]));
+				page.clear();
 			}
-			return list;
 		}
-		
+
 		public void run() {
 			Log.v(LABEL, "smsFinder run");
 			Env.setEnv(env);
 			try {
 				Log.v(LABEL, "smsFinder run - 01");
-				List<Message> res = new ArrayList<Message>();
-				if(searchSms()) {
-					Log.v(LABEL, "smsFinder run - 02");
-					if(searchDir(FOLDER_INBOX)) {
-						Log.v(LABEL, "smsFinder run - search inbox");
-						res = getSms(res, FOLDER_INBOX);
-					}
-					if(searchDir(FOLDER_SENTBOX)) {
-						Log.v(LABEL, "smsFinder run - search sentbox");
-						res = getSms(res, FOLDER_SENTBOX);
-					}
-					if(searchDir(FOLDER_OUTBOX)) {
-						Log.v(LABEL, "smsFinder run - search outbox");
-						res = getSms(res, FOLDER_OUTBOX);
-					}
-					if(searchDir(FOLDER_DRAFTS)) {
-						Log.v(LABEL, "smsFinder run - search drafts");
-						res = getSms(res, FOLDER_DRAFTS);
-					}
-				}
-				if(searchMms()) {
-					Log.v(LABEL, "smsFinder run - 03");
-					//Uri uriSMSURI;
-					//uriSMSURI = Uri.parse("content://mms");
-					res = getMms(res, FOLDER_INBOX);
+				getMessages();
+				if(isStopped()) {
+					Log.v(LABEL, "smsFinder run - stopped");
+					return;
 				}
 				//TODO what if no results found? Return a null?
 				Log.v(LABEL, "smsFinder run - sending callback");
-				successCallback.onSuccess(res.toArray(new MessageImpl[res.size()]));
+				successCallback.onSuccess(page.toArray(new MessageImpl[page.size()]));
 				Log.v(LABEL, "smsFinder run - callback sent");
 			}
 			catch(Exception e) {
 				Log.v(LABEL, "smsFinder run, error: "+e);
-				errorCallback.onerror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR));
+				if(!isStopped() && errorCallback != null)
+					errorCallback.onerror(new DeviceAPIError(DeviceAPIError.UNKNOWN_ERR));
 			}
 		      
 			Log.v(LABEL, "smsFinder run - END");
@@ -743,40 +573,102 @@ public class MessagingImpl extends MessagingManager implements IModule {
 		}
 	}
 	
-	public class SmsReceiver extends BroadcastReceiver {
-
-		private OnIncomingMessage messageHandler;
+	/**
+	 * The messages matched by one query, read a page at a time.
+	 */
+	private static class MessageSource {
+		private final MessageQuery query;
+		private final int pageSize;
+		private int offset;
+		private int remaining;
+		private List<MessageImpl> page;
+		private int index;
+		private boolean done;
+
+		private MessageSource(MessageQuery query, int pageSize) {
+			this.query = query;
+			this.pageSize = pageSize;
+		}
+
+		/* the next message, reading the next page if needed; null when there are no more */
+		private MessageImpl peek(Context ctx) {
+			if((page == null || index == page.size()) && !done) {
+				int limit = (remaining > 0) ? Math.min(remaining, pageSize) : pageSize;
+				page = query.read(ctx, limit, offset);
+				index = 0;
+				offset += page.size();
+				if(remaining > 0)
+					remaining -= page.size();
+				done = (page.size() < limit || remaining == 0);
+				Log.v(LABEL, "MessageSource - "+page.size()+" messages read");
+			}
+			return (index < page.size()) ? page.get(index) : null;
+		}
 
-		private SmsReceiver(OnIncomingMessage messageHandler) {
-			this.messageHandler = messageHandler;
+		private MessageImpl take() {
+			return page.get(index++);
 		}
+	}
+
+	/**
+	 * The receiver for incoming SMS, shared by all subscriptions. Each
+	 * broadcast is decoded once; consecutive PDUs from the same sender are
+	 * the parts of a single message and are joined. Every subscription
+	 * receives the same Message instance.
+	 */
+	public class SmsReceiver extends BroadcastReceiver {
+
+		private SmsReceiver() {}
 		
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			Log.v(LABEL, "SMSReceiver - onreceive");
 			Env.setEnv(env);
 			Bundle bundle = intent.getExtras();
+			if(bundle == null)
+				return;
 
-			Object messages[] = (Object[]) bundle.get("pdus");
-			for (int i = 0; i < messages.length; i++) {
-				SmsMessage smsMessage = SmsMessage.createFromPdu((byte[]) messages[i]);
-				MessageImpl msg = new MessageImpl();
+			Object pdus[] = (Object[]) bundle.get("pdus");
+			if(pdus == null)
+				return;
+			ArrayList<MessageImpl> messages = new ArrayList<MessageImpl>();
+			MessageImpl msg = null;
+			StringBuilder body = null;
+			for (int i = 0; i < pdus.length; i++) {
+				SmsMessage smsMessage = SmsMessage.createFromPdu((byte[]) pdus[i]);
+				String from = smsMessage.getOriginatingAddress();
+				if(msg != null && from != null && from.equals(msg.from)) {
+					body.append(smsMessage.getMessageBody());
+					continue;
+				}
+				if(msg != null)
+					msg.body = body.toString();
+				msg = new MessageImpl();
 				msg.setContext(androidContext);
 				msg.type = TYPE_SMS;
-//				msg.id = ;
-				msg.body = smsMessage.getMessageBody();
 				msg.isRead = false;
 				msg.timestamp = new Date(smsMessage.getTimestampMillis());
-				ObjectArray<String> toTmp;
 				msg.folder = FOLDER_INBOX;
-				msg.from = smsMessage.getOriginatingAddress();
-				toTmp = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{"me"});
-				msg.to = toTmp;
-				messageHandler.onEvent(msg);
+				msg.from = from;
+				msg.to = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{"me"});
+				body = new StringBuilder(smsMessage.getMessageBody());
+				messages.add(msg);
+			}
+			if(msg != null)
+				msg.body = body.toString();
+
+			for(OnIncomingMessage messageHandler : smsSubscriptions.values()) {
+				for(MessageImpl message : messages) {
+					try {
+						messageHandler.onEvent(message);
+					} catch(Exception e) {
+						Log.v(LABEL, "SMSReceiver - handler exception "+e);
+					}
+				}
 			}
 		}
 	}
-	
+
 }
 
 abstract interface MessagingRunnable extends Runnable {
@@ -787,6 +679,7 @@ abstract interface MessagingRunnable extends Runnable {
 class MessagingPendingOperation extends PendingOperation {
 
 	private Thread t=null;
+	private Future<?> f=null;
 	private MessagingRunnable r=null;
 	
 	public MessagingPendingOperation(Thread t, MessagingRunnable r) {
@@ -794,6 +687,11 @@ class MessagingPendingOperation extends PendingOperation {
 		this.r = r;
 	}
 
+	public MessagingPendingOperation(Future<?> f, MessagingRunnable r) {
+		this.f = f;
+		this.r = r;
+	}
+
 //	public void setData(Thread t, MessagingRunnable r) {
 //		this.t = t;
 //		this.r = r;
@@ -808,6 +706,12 @@ class MessagingPendingOperation extends PendingOperation {
 			if(r!=null)
 				r.stop();
 		}
+		else if(f!=null) {
+			//stop a running operation at its next check, or remove a queued one
+			if(r!=null)
+				r.stop();
+			f.cancel(false);
+		}
 	}
 
 }
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ *  Code contributed to the webinos project
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Copyright 2011 Telecom Italia SpA
+ * 
+ ******************************************************************************/
+
+package org.webinos.android.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.webinos.api.File;
+import org.webinos.api.messaging.MessageFilter;
+import org.webinos.api.messaging.MessagingManager;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A MessageFilter compiled into a query over content://mms. A page of
+ * messages costs two provider queries: one over mms, which also returns
+ * each message's addresses, and one over mms/part for the whole page.
+ * Attachments are returned as content URIs and are never read here.
+ */
+class MmsQuery extends MessageQuery {
+	private static final String TAG = "org.webinos.android.impl.MmsQuery";
+
+	static final Uri CONTENT_URI = Uri.parse("content://mms");
+	static final Uri PART_URI = Uri.parse("content://mms/part");
+
+	/* values of the provider's msg_box column */
+	static final int BOX_INBOX = 1;
+	static final int BOX_SENT = 2;
+	static final int BOX_DRAFTS = 3;
+	static final int BOX_OUTBOX = 4;
+
+	/* PDU message types of sent and retrieved messages; other rows are
+	 * notifications and reports */
+	private static final int MESSAGE_TYPE_SEND_REQ = 128;
+	private static final int MESSAGE_TYPE_RETRIEVE_CONF = 132;
+
+	/* values of the addr table's type column */
+	private static final int ADDR_BCC = 129;
+	private static final int ADDR_CC = 130;
+	private static final int ADDR_FROM = 137;
+	private static final int ADDR_TO = 151;
+
+	/* the provider has no URI over all addresses, so each message's addresses
+	 * are selected from the addr table by subqueries in the projection,
+	 * joined with a control character that cannot occur in an address */
+	private static final String ADDRESS_SEPARATOR = "\u0001";
+	private static final String[] PROJECTION = new String[] {"_id", "date", "msg_box", "read", "sub",
+		addresses("from_addr", ADDR_FROM), addresses("to_addr", ADDR_TO),
+		addresses("cc_addr", ADDR_CC), addresses("bcc_addr", ADDR_BCC)};
+	private static final String[] PART_PROJECTION = new String[] {"_id", "mid", "ct", "name", "cl", "text"};
+
+	private final String selection;
+	private final String[] selectionArgs;
+	private final String sortOrder;
+	private final boolean empty;
+
+	MmsQuery(MessageFilter filter, boolean ascending) {
+		sortOrder = ascending ? "date ASC, _id ASC" : "date DESC, _id DESC";
+		StringBuilder sel = new StringBuilder();
+		ArrayList<String> args = new ArrayList<String>();
+
+		sel.append("m_type IN (").append(MESSAGE_TYPE_SEND_REQ).append(',').append(MESSAGE_TYPE_RETRIEVE_CONF).append(')');
+		int[] folders = (filter == null || filter.folder == null)
+				? new int[] {MessagingManager.FOLDER_INBOX, MessagingManager.FOLDER_SENTBOX, MessagingManager.FOLDER_OUTBOX, MessagingManager.FOLDER_DRAFTS}
+				: filter.folder;
+		sel.append(" AND msg_box IN (");
+		int boxes = 0;
+		for(int folder : folders) {
+			int box = boxOf(folder);
+			if(box == -1)
+				continue;
+			sel.append(boxes++ == 0 ? "?" : ",?");
+			args.add(String.valueOf(box));
+		}
+		sel.append(')');
+		empty = (boxes == 0);
+
+		if(filter != null) {
+			if(filter.id != null) {
+				sel.append(" AND _id = ?");
+				args.add(filter.id);
+			}
+			if(filter.from != null) {
+				sel.append(" AND msg_box = ").append(BOX_INBOX)
+					.append(" AND _id IN (SELECT msg_id FROM addr WHERE type = ").append(ADDR_FROM).append(" AND address = ?)");
+				args.add(filter.from);
+			}
+			if(filter.to != null) {
+				sel.append(" AND msg_box <> ").append(BOX_INBOX)
+					.append(" AND _id IN (SELECT msg_id FROM addr WHERE type = ").append(ADDR_TO).append(" AND address IN (");
+				for(int i = 0; i < filter.to.length; i++) {
+					sel.append(i == 0 ? "?" : ",?");
+					args.add(filter.to[i]);
+				}
+				sel.append("))");
+			}
+			if(filter.body != null) {
+				sel.append(" AND _id IN (SELECT mid FROM part WHERE ct = 'text/plain' AND text = ?)");
+				args.add(filter.body);
+			}
+			if(filter.subject != null) {
+				sel.append(" AND sub = ?");
+				args.add(filter.subject);
+			}
+			if(filter.isRead != null)
+				sel.append(" AND read = ").append(filter.isRead ? 1 : 0);
+			/* the provider stores dates in seconds */
+			if(filter.startTimestamp != null) {
+				sel.append(" AND date >= ?");
+				args.add(String.valueOf((filter.startTimestamp.getTime() + 999) / 1000));
+			}
+			if(filter.endTimestamp != null) {
+				sel.append(" AND date <= ?");
+				args.add(String.valueOf(filter.endTimestamp.getTime() / 1000));
+			}
+		}
+		selection = sel.toString();
+		selectionArgs = args.toArray(new String[args.size()]);
+	}
+
+	@Override
+	boolean isEmpty() {
+		return empty;
+	}
+
+	@Override
+	String getSelection() {
+		return selection;
+	}
+
+	@Override
+	List<MessageImpl> read(Context ctx, int limit, int offset) {
+		ContentResolver contentResolver = ctx.getContentResolver();
+		ArrayList<MessageImpl> result = new ArrayList<MessageImpl>();
+		HashMap<String, MessageImpl> byId = new HashMap<String, MessageImpl>();
+		Cursor cursor = contentResolver.query(CONTENT_URI, PROJECTION, selection, selectionArgs,
+				sortOrder + " LIMIT " + limit + " OFFSET " + offset);
+		if(cursor == null)
+			return result;
+		try {
+			int idIdx = cursor.getColumnIndexOrThrow("_id");
+			int dateIdx = cursor.getColumnIndexOrThrow("date");
+			int boxIdx = cursor.getColumnIndexOrThrow("msg_box");
+			int readIdx = cursor.getColumnIndexOrThrow("read");
+			int subjectIdx = cursor.getColumnIndexOrThrow("sub");
+			int fromIdx = cursor.getColumnIndexOrThrow("from_addr");
+			int toIdx = cursor.getColumnIndexOrThrow("to_addr");
+			int ccIdx = cursor.getColumnIndexOrThrow("cc_addr");
+			int bccIdx = cursor.getColumnIndexOrThrow("bcc_addr");
+			while(cursor.moveToNext()) {
+				MessageImpl msg = new MessageImpl();
+				msg.setContext(ctx);
+				msg.type = MessagingManager.TYPE_MMS;
+				msg.folder = folderOf(cursor.getInt(boxIdx));
+				msg.id = cursor.getString(idIdx);
+				msg.timestamp = new Date(cursor.getLong(dateIdx) * 1000);
+				msg.isRead = cursor.getInt(readIdx) != 0;
+				msg.subject = cursor.getString(subjectIdx);
+				if(msg.folder == MessagingManager.FOLDER_INBOX) {
+					msg.from = cursor.getString(fromIdx);
+					msg.to = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{"me"});
+				} else {
+					msg.from = "me";
+					msg.to = split(cursor.getString(toIdx));
+					msg.cc = split(cursor.getString(ccIdx));
+					msg.bcc = split(cursor.getString(bccIdx));
+				}
+				result.add(msg);
+				byId.put(msg.id, msg);
+			}
+		} finally {
+			cursor.close();
+		}
+		if(!result.isEmpty())
+			readParts(contentResolver, result, byId);
+		return result;
+	}
+
+	/* read the parts of a page of messages in a single query; text parts
+	 * form the body and all other parts except the SMIL layout become
+	 * attachments referring to the part's content URI */
+	private static void readParts(ContentResolver contentResolver, List<MessageImpl> messages, HashMap<String, MessageImpl> byId) {
+		StringBuilder sel = new StringBuilder("mid IN (");
+		for(int i = 0; i < messages.size(); i++) {
+			if(i > 0)
+				sel.append(',');
+			sel.append(Long.parseLong(messages.get(i).id));
+		}
+		sel.append(')');
+
+		HashMap<String, ArrayList<File>> attachments = new HashMap<String, ArrayList<File>>();
+		Cursor cursor = contentResolver.query(PART_URI, PART_PROJECTION, sel.toString(), null, "mid, seq");
+		if(cursor == null)
+			return;
+		try {
+			int idIdx = cursor.getColumnIndexOrThrow("_id");
+			int midIdx = cursor.getColumnIndexOrThrow("mid");
+			int typeIdx = cursor.getColumnIndexOrThrow("ct");
+			int nameIdx = cursor.getColumnIndexOrThrow("name");
+			int locationIdx = cursor.getColumnIndexOrThrow("cl");
+			int textIdx = cursor.getColumnIndexOrThrow("text");
+			while(cursor.moveToNext()) {
+				String mid = cursor.getString(midIdx);
+				MessageImpl msg = byId.get(mid);
+				String type = cursor.getString(typeIdx);
+				if(msg == null || type == null || type.equals("application/smil"))
+					continue;
+				if(type.equals("text/plain") && !cursor.isNull(textIdx)) {
+					String text = cursor.getString(textIdx);
+					msg.body = (msg.body == null) ? text : msg.body + '\n' + text;
+					continue;
+				}
+				File file = new File();
+				file.type = type;
+				file.name = cursor.isNull(nameIdx) ? cursor.getString(locationIdx) : cursor.getString(nameIdx);
+				file.fullPath = Uri.withAppendedPath(PART_URI, cursor.getString(idIdx)).toString();
+				ArrayList<File> files = attachments.get(mid);
+				if(files == null) {
+					files = new ArrayList<File>();
+					attachments.put(mid, files);
+				}
+				files.add(file);
+			}
+		} finally {
+			cursor.close();
+		}
+		for(MessageImpl msg : messages) {
+			ArrayList<File> files = attachments.get(msg.id);
+			File[] array = (files == null) ? new File[0] : files.toArray(new File[files.size()]);
+			msg.attachments = new org.meshpoint.anode.java.ObjectArray<File>(array);
+		}
+		Log.v(TAG, "read parts of " + messages.size() + " messages");
+	}
+
+	private static String addresses(String name, int type) {
+		return "(SELECT group_concat(address, char(1)) FROM addr WHERE addr.msg_id = pdu._id AND addr.type = "
+				+ type + ") AS " + name;
+	}
+
+	private static org.meshpoint.anode.java.ObjectArray<String> split(String addresses) {
+		String[] result = (addresses == null || addresses.length() == 0) ? new String[0] : addresses.split(ADDRESS_SEPARATOR);
+		return new org.meshpoint.anode.java.ObjectArray<String>(result);
+	}
+
+	static int boxOf(int folder) {
+		switch(folder) {
+		case MessagingManager.FOLDER_INBOX: return BOX_INBOX;
+		case MessagingManager.FOLDER_SENTBOX: return BOX_SENT;
+		case MessagingManager.FOLDER_DRAFTS: return BOX_DRAFTS;
+		case MessagingManager.FOLDER_OUTBOX: return BOX_OUTBOX;
+		default: return -1;
+		}
+	}
+
+	static int folderOf(int box) {
+		switch(box) {
+		case BOX_INBOX: return MessagingManager.FOLDER_INBOX;
+		case BOX_SENT: return MessagingManager.FOLDER_SENTBOX;
+		case BOX_DRAFTS: return MessagingManager.FOLDER_DRAFTS;
+		case BOX_OUTBOX: return MessagingManager.FOLDER_OUTBOX;
+		default: return -1;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ *  Code contributed to the webinos project
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Copyright 2011 Telecom Italia SpA
+ * 
+ ******************************************************************************/
+
+package org.webinos.android.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.webinos.api.messaging.MessageFilter;
+import org.webinos.api.messaging.MessagingManager;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A MessageFilter compiled into a single query over content://sms.
+ * Folders become a condition on the type column, timestamps a range on
+ * date, and every value taken from the filter is passed as a bind
+ * argument. Results are in date order and can be read a page at a time
+ * with LIMIT and OFFSET.
+ */
+class SmsQuery extends MessageQuery {
+
+	static final Uri CONTENT_URI = Uri.parse("content://sms");
+
+	/* values of the provider's type column */
+	static final int TYPE_INBOX = 1;
+	static final int TYPE_SENT = 2;
+	static final int TYPE_DRAFT = 3;
+	static final int TYPE_OUTBOX = 4;
+
+	private static final String[] PROJECTION = new String[] {"_id", "address", "date", "read", "type", "body"};
+
+	private final String selection;
+	private final String[] selectionArgs;
+	private final String sortOrder;
+	private final boolean empty;
+
+	SmsQuery(MessageFilter filter, boolean ascending) {
+		sortOrder = ascending ? "date ASC, _id ASC" : "date DESC, _id DESC";
+		StringBuilder sel = new StringBuilder();
+		ArrayList<String> args = new ArrayList<String>();
+
+		int[] folders = (filter == null || filter.folder == null)
+				? new int[] {MessagingManager.FOLDER_INBOX, MessagingManager.FOLDER_SENTBOX, MessagingManager.FOLDER_OUTBOX, MessagingManager.FOLDER_DRAFTS}
+				: filter.folder;
+		sel.append("type IN (");
+		int types = 0;
+		for(int folder : folders) {
+			int type = typeOf(folder);
+			if(type == -1)
+				continue;
+			sel.append(types++ == 0 ? "?" : ",?");
+			args.add(String.valueOf(type));
+		}
+		sel.append(')');
+		empty = (types == 0);
+
+		if(filter != null) {
+			if(filter.id != null) {
+				sel.append(" AND _id = ?");
+				args.add(filter.id);
+			}
+			/* only received messages have a sender other than the user */
+			if(filter.from != null) {
+				sel.append(" AND type = ").append(TYPE_INBOX).append(" AND address = ?");
+				args.add(filter.from);
+			}
+			/* and only sent messages have recipients other than the user */
+			if(filter.to != null) {
+				sel.append(" AND type <> ").append(TYPE_INBOX).append(" AND address IN (");
+				for(int i = 0; i < filter.to.length; i++) {
+					sel.append(i == 0 ? "?" : ",?");
+					args.add(filter.to[i]);
+				}
+				sel.append(')');
+			}
+			if(filter.body != null) {
+				sel.append(" AND body = ?");
+				args.add(filter.body);
+			}
+			if(filter.isRead != null)
+				sel.append(" AND read = ").append(filter.isRead ? 1 : 0);
+			if(filter.startTimestamp != null) {
+				sel.append(" AND date >= ?");
+				args.add(String.valueOf(filter.startTimestamp.getTime()));
+			}
+			if(filter.endTimestamp != null) {
+				sel.append(" AND date <= ?");
+				args.add(String.valueOf(filter.endTimestamp.getTime()));
+			}
+		}
+		selection = sel.toString();
+		selectionArgs = args.toArray(new String[args.size()]);
+	}
+
+	@Override
+	boolean isEmpty() {
+		return empty;
+	}
+
+	@Override
+	String getSelection() {
+		return selection;
+	}
+
+	@Override
+	List<MessageImpl> read(Context ctx, int limit, int offset) {
+		ArrayList<MessageImpl> result = new ArrayList<MessageImpl>();
+		Cursor cursor = query(ctx.getContentResolver(), limit, offset);
+		if(cursor == null)
+			return result;
+		try {
+			Reader reader = new Reader(ctx, cursor);
+			while(cursor.moveToNext())
+				result.add(reader.read());
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	/* query one page of rows; no limit is applied if limit is 0 */
+	Cursor query(ContentResolver contentResolver, int limit, int offset) {
+		String order = sortOrder;
+		if(limit > 0)
+			order += " LIMIT " + limit + " OFFSET " + offset;
+		return contentResolver.query(CONTENT_URI, PROJECTION, selection, selectionArgs, order);
+	}
+
+	static int typeOf(int folder) {
+		switch(folder) {
+		case MessagingManager.FOLDER_INBOX: return TYPE_INBOX;
+		case MessagingManager.FOLDER_SENTBOX: return TYPE_SENT;
+		case MessagingManager.FOLDER_DRAFTS: return TYPE_DRAFT;
+		case MessagingManager.FOLDER_OUTBOX: return TYPE_OUTBOX;
+		default: return -1;
+		}
+	}
+
+	static int folderOf(int type) {
+		switch(type) {
+		case TYPE_INBOX: return MessagingManager.FOLDER_INBOX;
+		case TYPE_SENT: return MessagingManager.FOLDER_SENTBOX;
+		case TYPE_DRAFT: return MessagingManager.FOLDER_DRAFTS;
+		case TYPE_OUTBOX: return MessagingManager.FOLDER_OUTBOX;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Reads messages from a cursor returned by query(); column
+	 * indices are resolved once when the reader is created.
+	 */
+	static class Reader {
+		private final Context ctx;
+		private final Cursor cursor;
+		private final int idIdx, addressIdx, dateIdx, readIdx, typeIdx, bodyIdx;
+
+		Reader(Context ctx, Cursor cursor) {
+			this.ctx = ctx;
+			this.cursor = cursor;
+			idIdx = cursor.getColumnIndexOrThrow("_id");
+			addressIdx = cursor.getColumnIndexOrThrow("address");
+			dateIdx = cursor.getColumnIndexOrThrow("date");
+			readIdx = cursor.getColumnIndexOrThrow("read");
+			typeIdx = cursor.getColumnIndexOrThrow("type");
+			bodyIdx = cursor.getColumnIndexOrThrow("body");
+		}
+
+		/* the message at the cursor's current row; the query only
+		 * selects rows of known types, so the folder is always valid */
+		MessageImpl read() {
+			int folder = folderOf(cursor.getInt(typeIdx));
+			MessageImpl msg = new MessageImpl();
+			msg.setContext(ctx);
+			msg.type = MessagingManager.TYPE_SMS;
+			msg.folder = folder;
+			msg.id = cursor.getString(idIdx);
+			msg.timestamp = new Date(cursor.getLong(dateIdx));
+			msg.body = cursor.getString(bodyIdx);
+			msg.isRead = cursor.getInt(readIdx) != 0;
+			String address = cursor.getString(addressIdx);
+			if(folder == MessagingManager.FOLDER_INBOX) {
+				msg.from = address;
+				msg.to = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{"me"});
+			} else {
+				msg.from = "me";
+				msg.to = new org.meshpoint.anode.java.ObjectArray<String>(new String[]{address});
+			}
+			return msg;
+		}
+	}
+}
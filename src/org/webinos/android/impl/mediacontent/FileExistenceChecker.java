@@ -0,0 +1,132 @@
+package org.webinos.android.impl.mediacontent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Checks whether the files of a page of results still exist. Uncached
+ * paths are checked in parallel, since each check is a stat that may be
+ * slow on FUSE-backed storage, and results are cached for TTL_MILLIS.
+ */
+class FileExistenceChecker {
+  private static final String TAG = FileExistenceChecker.class.getName();
+
+  static final long TTL_MILLIS = 10000;
+  static final int MAX_ENTRIES = 1024;
+  private static final int THREADS = 4;
+  /* fewer paths than this are checked on the calling thread */
+  private static final int MIN_PARALLEL = 8;
+
+  private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "FileExistenceChecker");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private static class Result {
+    final boolean exists;
+    final long checked;
+
+    Result(boolean exists, long checked) {
+      this.exists = exists;
+      this.checked = checked;
+    }
+  }
+
+  private final Map<String, Result> cache = new LinkedHashMap<String, Result>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /* statistics */
+  private long hits;
+  private long checks;
+
+  /**
+   * Check a set of paths.
+   * @return for each path, whether the file exists
+   */
+  boolean[] exists(List<String> paths) throws Exception {
+    boolean[] result = new boolean[paths.size()];
+    final List<Integer> unknown = new ArrayList<Integer>();
+    long now = System.currentTimeMillis();
+    synchronized(cache) {
+      for(int i = 0; i < paths.size(); i++) {
+        Result cached = cache.get(paths.get(i));
+        if(cached != null && now - cached.checked < TTL_MILLIS) {
+          result[i] = cached.exists;
+          ++hits;
+        } else {
+          unknown.add(i);
+        }
+      }
+      checks += unknown.size();
+    }
+    if(unknown.isEmpty())
+      return result;
+
+    if(unknown.size() < MIN_PARALLEL) {
+      for(int i : unknown)
+        result[i] = new File(paths.get(i)).exists();
+    } else {
+      /* split the unknown paths into one contiguous slice per thread */
+      List<Future<boolean[]>> futures = new ArrayList<Future<boolean[]>>(THREADS);
+      int sliceSize = (unknown.size() + THREADS - 1) / THREADS;
+      for(int start = 0; start < unknown.size(); start += sliceSize) {
+        final List<String> slice = new ArrayList<String>();
+        for(int i : unknown.subList(start, Math.min(start + sliceSize, unknown.size())))
+          slice.add(paths.get(i));
+        futures.add(executor.submit(new Callable<boolean[]>() {
+          public boolean[] call() {
+            boolean[] exists = new boolean[slice.size()];
+            for(int i = 0; i < exists.length; i++)
+              exists[i] = new File(slice.get(i)).exists();
+            return exists;
+          }
+        }));
+      }
+      int next = 0;
+      for(Future<boolean[]> future : futures) {
+        for(boolean exists : future.get())
+          result[unknown.get(next++)] = exists;
+      }
+    }
+
+    now = System.currentTimeMillis();
+    synchronized(cache) {
+      for(int i : unknown)
+        cache.put(paths.get(i), new Result(result[i], now));
+    }
+    Log.v(TAG, "checked " + unknown.size() + " of " + paths.size() + " paths; " + toString());
+    return result;
+  }
+
+  /* forget the cached result for a path, if its file is known to have changed */
+  void invalidate(String path) {
+    synchronized(cache) {
+      cache.remove(path);
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized(cache) {
+      return "hits=" + hits + " checks=" + checks + " cached=" + cache.size();
+    }
+  }
+}
@@ -5,10 +5,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.webinos.android.impl.mediacontent.Mapping.CompositeDbField;
 import org.webinos.android.impl.mediacontent.Mapping.DbField;
 import org.webinos.android.impl.mediacontent.Mapping.SingleDbField;
 import org.webinos.api.DeviceAPIError;
@@ -28,28 +29,39 @@ import org.webinos.api.mediacontent.ThumbnailCallback;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.FileObserver;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import org.blinkenlights.jid3.*;
-import org.blinkenlights.jid3.v1.*;
-import org.blinkenlights.jid3.v2.*;
-
 class LocalMediaSource extends MediaSource {
   private Context ctx;
   private GetFoldersStrategy getFoldersStrategy;
   private String volumeName;
   private String storageType;
   private String[] toplevelMediaFolders = null;
-  private Map<String, FolderObserver> folderObservers = new HashMap<String, FolderObserver>();
+  /* folders are observed once items in them have been found, up to
+   * MAX_OBSERVED_FOLDERS; beyond that the least recently browsed
+   * folder is no longer observed */
+  static final int MAX_OBSERVED_FOLDERS = 64;
+  private Map<String, FolderObserver> folderObservers = new LinkedHashMap<String, FolderObserver>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FolderObserver> eldest) {
+      if(size() <= MAX_OBSERVED_FOLDERS)
+        return false;
+      eldest.getValue().stopWatching();
+      Log.d("LocalMediaSource", "remove observer: " + eldest.getKey());
+      return true;
+    }
+  };
+  private MediaScanQueue scanQueue;
+  private MediaMetadataIndex metadataIndex;
+  private FileExistenceChecker existenceChecker = new FileExistenceChecker();
   
   ContentResolver contentResolver;
   Uri contentUri;
@@ -65,6 +77,8 @@ class LocalMediaSource extends MediaSource {
     this.getFoldersStrategy = getFoldersStrategy;
     this.contentResolver = ctx.getContentResolver();
     this.contentUri = MediaStore.Files.getContentUri(this.volumeName);
+    this.scanQueue = new MediaScanQueue(ctx);
+    this.metadataIndex = new MediaMetadataIndex(ctx, this.volumeName);
 
     if(this.volumeName.equals("internal"))
       this.storageType = MediaFolder.STORAGE_TYPE_INTERNAL;
@@ -86,10 +100,18 @@ class LocalMediaSource extends MediaSource {
         Environment.getExternalStorageDirectory().toString()
       };
     }
+    this.metadataIndex.startIndexing(contentResolver, contentUri);
+  }
 
-    /* observe all subfolders to reflect changes into MediaStore */
-    for(String folderPath : this.toplevelMediaFolders)
-      addFolderObservers(folderPath);
+  /* stop all observers and pending scans; called when the module stops */
+  void release() {
+    synchronized(folderObservers) {
+      for(FolderObserver folderObserver : folderObservers.values())
+        folderObserver.stopWatching();
+      folderObservers.clear();
+    }
+    scanQueue.clear();
+    metadataIndex.release();
   }
 
   @Override
@@ -141,8 +163,8 @@ class LocalMediaSource extends MediaSource {
       folderId,
       AbstractFilter.getFilter(filterValues),
       sortMode,
-      2,
-      0
+      count,
+      offset
     );
     new Thread(op).start();
   }
@@ -161,39 +183,39 @@ class LocalMediaSource extends MediaSource {
    * Observe folders
    ***************/
 
+  /* a file is only queued for scanning once it has been completely
+   * written, or moved or deleted; MODIFY events of partial writes are
+   * not observed */
+  private static final int OBSERVED_EVENTS = FileObserver.CLOSE_WRITE
+      | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
   private class FolderObserver extends FileObserver {
-    private Context ctxLocalMediaSource;
+    private String directory;
 
     public FolderObserver(String path) {
-      super(path);
-      this.ctxLocalMediaSource = ctx; 
+      super(path, OBSERVED_EVENTS);
+      this.directory = path;
     }
 
     @Override
     public void onEvent(int event, String path) {
-      if(event == FileObserver.MODIFY) {
-        Log.d("FolderObserver", "event: " + event + " path: " + path);
-        ctxLocalMediaSource.sendBroadcast(new Intent(
-            Intent.ACTION_MEDIA_MOUNTED,
-            Uri.parse("file://" + Environment.getExternalStorageDirectory())
-          )
-        );
+      if(path != null && (event & OBSERVED_EVENTS) != 0) {
+        String fullPath = directory + File.separator + path;
+        existenceChecker.invalidate(fullPath);
+        scanQueue.add(fullPath);
       }
     }
   }
 
-  private void addFolderObservers(String directoryName) {
-    File directory = new File(directoryName);
-    if(directory != null && directory.isDirectory()) {
+  /* observe a folder, or mark it as recently browsed if already observed */
+  private void observeFolder(String directoryName) {
+    synchronized(folderObservers) {
+      if(folderObservers.get(directoryName) != null)
+        return;
       FolderObserver folderObserver = new FolderObserver(directoryName);
-      if(!folderObservers.containsKey(directoryName))
-        folderObservers.put(directoryName, folderObserver);
-      folderObservers.get(directoryName).startWatching();
+      folderObservers.put(directoryName, folderObserver);
+      folderObserver.startWatching();
       Log.d("LocalMediaSource", "add observer: " + directoryName);
-      File[] fList = directory.listFiles();
-      if(fList != null)
-        for(File file : fList)
-          if(file.isDirectory()) addFolderObservers(file.getAbsolutePath());
     }
   }
 
@@ -307,24 +329,6 @@ class LocalMediaSource extends MediaSource {
    * Get items
    ***************/
 
-  private Object getValue(Cursor cursor, SingleDbField dbField) {
-    Object value = null;
-    int index = cursor.getColumnIndex(dbField.getName());
-    if(index != -1) {
-      if(cursor.getType(index) == Cursor.FIELD_TYPE_STRING) {
-        value = cursor.getString(index);
-      } else if(cursor.getType(index) == Cursor.FIELD_TYPE_INTEGER) {
-        value = cursor.getLong(index);
-      } else if(cursor.getType(index) == Cursor.FIELD_TYPE_FLOAT) {
-        value = cursor.getDouble(index);
-      }
-    }
-    if(dbField.getTranslator() != null) {
-      value = dbField.getTranslator().getAttribValue(value);
-    }
-    return value;
-  }
-
   private class FindItemsOperation implements Runnable {
     private MediaItemSuccessCallback successCallback;
     private MediaContentErrorCallback errorCallback;
@@ -380,7 +384,9 @@ class LocalMediaSource extends MediaSource {
               + folderId + ")";
         }
 
-        String sortOrder = null;
+        /* MediaStore appends the sort order to the query, so paging is
+         * expressed there; a stable order is needed for LIMIT/OFFSET */
+        String sortOrder = MediaStore.Files.FileColumns._ID;
         if(sortMode != null) {
           DbField dbField = Mapping.getDbField(sortMode.attributeName);
           if(dbField instanceof SingleDbField) {
@@ -390,11 +396,17 @@ class LocalMediaSource extends MediaSource {
           } else {
             throw new DeviceAPIError(DeviceAPIError.INVALID_VALUES_ERR);
           }
+          sortOrder += ", " + MediaStore.Files.FileColumns._ID;
+        }
+        /* LIMIT -1 is no limit; SQLite only accepts OFFSET after a LIMIT */
+        if(count > 0 || offset > 0) {
+          sortOrder += " LIMIT " + (count > 0 ? count : -1);
+          if(offset > 0)
+            sortOrder += " OFFSET " + offset;
         }
 
         List<MediaItem> mediaItems = new ArrayList<MediaItem>();
 
-        Map<String, Object> valueSet = new HashMap<String, Object>();
         cursor = contentResolver.query(
           contentUri,
           projection,
@@ -403,59 +415,51 @@ class LocalMediaSource extends MediaSource {
           sortOrder
         );
 
+        long start = System.currentTimeMillis();
+        RowMapper rowMapper = RowMapper.get(projection);
+        int rows = 0;
         while(cursor.moveToNext()) {
-          for(String attribute : Mapping.getAttributes()) {
-            DbField dbField = Mapping.getDbField(attribute);
-            if(dbField instanceof SingleDbField) {
-              SingleDbField singleDbField = (SingleDbField) dbField;
-              Object attribValue = getValue(cursor, singleDbField);
-              if(attribValue != null) {
-                valueSet.put(attribute, attribValue);
-              }
-            } else if(dbField instanceof CompositeDbField) {
-              CompositeDbField compositeDbField = (CompositeDbField) dbField;
-              Object[] values = new Object[compositeDbField.getDbFields().length];
-              int i = 0;
-              for(SingleDbField singleDbField : compositeDbField.getDbFields()) {
-                values[i++] = getValue(cursor, singleDbField);
-              }
-              if(compositeDbField.getCompositeHandler() != null) {
-                Object attribValue = compositeDbField.getCompositeHandler().getComposite(values);
-                if(attribValue != null) valueSet.put(attribute, attribValue);
-              } else {
-                throw new DeviceAPIError(DeviceAPIError.INVALID_ERROR);
-              }
-            }
-          }
-
-          String mediaType = (String)valueSet.get("type");
-          if(valueSet.containsKey("itemURI") &&
-              (new File((String)valueSet.get("itemURI"))).exists()) {
-            if(MediaItem.MEDIATYPE_AUDIO.equals(mediaType)) {
-              mediaItems.add(newMediaAudio(valueSet));
-            } else if(MediaItem.MEDIATYPE_VIDEO.equals(mediaType)) {
-              mediaItems.add(newMediaVideo(valueSet));
-            } else if(MediaItem.MEDIATYPE_IMAGE.equals(mediaType)) {
-              mediaItems.add(newMediaImage(valueSet));
-            } else if(MediaItem.MEDIATYPE_UNKNOWN.equals(mediaType)) {
-              /* do nothing */
-            }
-          }
+          rows++;
+          MediaItem mediaItem = rowMapper.map(cursor);
+          if(mediaItem != null && mediaItem.itemURI != null)
+            mediaItems.add(mediaItem);
+        }
+        Log.v("LocalMediaSource", "mapped " + rows + " rows in " + (System.currentTimeMillis() - start) + "ms");
+        /* pages stay aligned to the requested rows, so a page may be short
+         * by the rows of missing files; those rows are queued for scanning,
+         * after which MediaStore no longer returns them */
+        removeMissing(mediaItems);
+        addMetadata(mediaItems);
+
+        String lastFolder = null;
+        for(MediaItem mediaItem : mediaItems) {
+          String folder = new File(mediaItem.itemURI).getParent();
+          if(folder != null && !folder.equals(lastFolder))
+            observeFolder(folder);
+          lastFolder = folder;
         }
 
+        /* each array holds only items of its own type, in result order */
+        int audioCount = 0, imageCount = 0, videoCount = 0;
+        for(MediaItem mediaItem : mediaItems) {
+          if(mediaItem instanceof MediaAudio) audioCount++;
+          else if(mediaItem instanceof MediaImage) imageCount++;
+          else if(mediaItem instanceof MediaVideo) videoCount++;
+        }
         MediaItemCollection mediaItemCollection = new MediaItemCollection();
         mediaItemCollection.size = mediaItems.size();
-        mediaItemCollection.audios = new MediaAudio[mediaItemCollection.size];
-        mediaItemCollection.images = new MediaImage[mediaItemCollection.size];
-        mediaItemCollection.videos = new MediaVideo[mediaItemCollection.size];
-
-        for(int i = 0; i < mediaItems.size(); i++) {
-          if(mediaItems.get(i) instanceof MediaAudio) {
-            mediaItemCollection.audios[i] = (MediaAudio)mediaItems.get(i);
-          } else if(mediaItems.get(i) instanceof MediaImage) {
-            mediaItemCollection.images[i] = (MediaImage)mediaItems.get(i);
-          } else if(mediaItems.get(i) instanceof MediaVideo) {
-            mediaItemCollection.videos[i] = (MediaVideo)mediaItems.get(i);
+        mediaItemCollection.audios = new MediaAudio[audioCount];
+        mediaItemCollection.images = new MediaImage[imageCount];
+        mediaItemCollection.videos = new MediaVideo[videoCount];
+
+        audioCount = imageCount = videoCount = 0;
+        for(MediaItem mediaItem : mediaItems) {
+          if(mediaItem instanceof MediaAudio) {
+            mediaItemCollection.audios[audioCount++] = (MediaAudio)mediaItem;
+          } else if(mediaItem instanceof MediaImage) {
+            mediaItemCollection.images[imageCount++] = (MediaImage)mediaItem;
+          } else if(mediaItem instanceof MediaVideo) {
+            mediaItemCollection.videos[videoCount++] = (MediaVideo)mediaItem;
           }
         }
 
@@ -468,97 +472,79 @@ class LocalMediaSource extends MediaSource {
       }
     }
 
-    private MediaAudio newMediaAudio(Map<String, Object> valueSet) {
-      MediaAudio mediaAudio = new MediaAudio(valueSet);
-      if(mediaAudio.itemURI != null) {
-        String filenameArray[] = mediaAudio.itemURI.split("\\.");
-        if(filenameArray[filenameArray.length - 1].equalsIgnoreCase("mp3")) {
-          /* handling MediaMetadataRetriever limitation, MP3 file handling with
-           * JID3 */
-          File oSourceFile = new File(mediaAudio.itemURI);
-          MediaFile oMediaFile = new MP3File(oSourceFile);
-          try {
-            ID3Tag[] aoID3Tag = oMediaFile.getTags();
-            for(int i=0; i < aoID3Tag.length; i++) {
-              if(aoID3Tag[i] instanceof ID3V1_0Tag) {
-                ID3V1_0Tag oID3V1_0Tag = (ID3V1_0Tag)aoID3Tag[i];
-                mediaAudio.album = oID3V1_0Tag.getAlbum();
-                mediaAudio.artists = new String[] {oID3V1_0Tag.getArtist()};
-                mediaAudio.genres = new String[] {oID3V1_0Tag.getGenre().toString()};
-                /* composers not supported by ID3V1_0Tag */
-                /* lyrics not supported by ID3V1_0Tag */
-                /* copyright not supported by ID3V1_0Tag */
-                /* bitrate not supported by ID3V1_0Tag */
-                /* trackNumber not supported by ID3V1_0Tag */
-                /* duration not supported by ID3V1_0Tag */
-                /* playedTime not supported by ID3V1_0Tag */
-                /* playCount not supported by ID3V1_0Tag */
-              } else if(aoID3Tag[i] instanceof ID3V2_3_0Tag) {
-                ID3V2_3_0Tag oID3V2_3_0Tag = (ID3V2_3_0Tag)aoID3Tag[i];
-                mediaAudio.album = oID3V2_3_0Tag.getAlbum();
-                mediaAudio.artists = new String[] {oID3V2_3_0Tag.getArtist()};
-                mediaAudio.genres = new String[] {oID3V2_3_0Tag.getGenre()};
-                mediaAudio.trackNumber = oID3V2_3_0Tag.getTrackNumber();
-                /* composers not supported by ID3V2_3_0Tag */
-                /* lyrics not supported by ID3V2_3_0Tag */
-                /* copyright not supported by ID3V2_3_0Tag */
-                /* bitrate not supported by ID3V2_3_0Tag */
-                /* duration not supported by ID3V2_3_0Tag */
-                /* playedTime not supported by ID3V2_3_0Tag */
-                /* playCount not supported by ID3V2_3_0Tag */
-              }
-            }
-          } catch (ID3Exception e) {
-            Log.d("NewMediaAudio", "Getting mp3 tag error for " + mediaAudio.itemURI + " Exception: " + e);
-          }
+    /* drop the items whose files no longer exist, and queue their paths
+     * for scanning so that MediaStore removes the stale rows */
+    private void removeMissing(List<MediaItem> mediaItems) throws Exception {
+      List<String> paths = new ArrayList<String>(mediaItems.size());
+      for(MediaItem mediaItem : mediaItems)
+        paths.add(mediaItem.itemURI);
+      boolean[] exists = existenceChecker.exists(paths);
+      int i = 0;
+      for(Iterator<MediaItem> it = mediaItems.iterator(); it.hasNext(); i++) {
+        MediaItem mediaItem = it.next();
+        if(!exists[i]) {
+          Log.d("LocalMediaSource", "stale row for missing file: " + mediaItem.itemURI);
+          scanQueue.add(mediaItem.itemURI);
+          it.remove();
         }
-        /* use MediaMetadataRetriever to get media tags */
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-        mmr.setDataSource(mediaAudio.itemURI);
-        try {
-          if(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM) != null)
-            mediaAudio.album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-
-          if(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST) != null)
-            mediaAudio.artists = new String[] {
-              mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST)
-            };
-
-          if(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE) != null)
-            mediaAudio.genres = new String[] {
-              mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE)
-            };
-
-          if(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER) != null)
-            mediaAudio.composers = new String[] {
-              mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER)
-            };
-
-          mediaAudio.trackNumber = Integer.parseInt(
-            mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER)
-          );
-
-          mediaAudio.duration = Long.parseLong(
-            mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION),
-            10
-          );
+      }
+    }
 
-          /* lyrics not supported by MediaMetadataRetriever */
-          /* copyright not supported by MediaMetadataRetriever */
-          /* bitrate not supported by MediaMetadataRetriever */
-          /* playedTime not supported by MediaMetadataRetriever */
-          /* playCount not supported by MediaMetadataRetriever */
-          mmr.release();
-        } catch (Exception e) {
-          Log.d("NewMeidaAudio", "Metadata retrieving error for: " + mediaAudio.itemURI + " Exception: " + e);
+    /* fill in the tags of the audio and video items of a page from the
+     * metadata index, with a single lookup for the whole page */
+    private void addMetadata(List<MediaItem> mediaItems) {
+      List<MediaMetadataIndex.Key> keys = new ArrayList<MediaMetadataIndex.Key>();
+      for(MediaItem mediaItem : mediaItems) {
+        if(mediaItem instanceof MediaImage)
+          continue;
+        long dateModified = mediaItem.modifiedDate == null ? 0 : mediaItem.modifiedDate.getTime() / 1000;
+        keys.add(new MediaMetadataIndex.Key(mediaItem.itemURI, mediaItem.size, dateModified,
+            mediaItem instanceof MediaAudio));
+      }
+      Map<String, MediaMetadataIndex.Metadata> metadata = keys.isEmpty()
+          ? new HashMap<String, MediaMetadataIndex.Metadata>()
+          : metadataIndex.get(keys);
+
+      for(MediaItem mediaItem : mediaItems) {
+        MediaMetadataIndex.Metadata tags = metadata.get(mediaItem.itemURI);
+        if(mediaItem instanceof MediaAudio) {
+          MediaAudio mediaAudio = (MediaAudio)mediaItem;
+          /* tags override the MediaStore values only where present */
+          if(tags != null) {
+            if(tags.album != null)
+              mediaAudio.album = tags.album;
+            if(tags.artist != null)
+              mediaAudio.artists = new String[] {tags.artist};
+            if(tags.genre != null)
+              mediaAudio.genres = new String[] {tags.genre};
+            if(tags.composer != null)
+              mediaAudio.composers = new String[] {tags.composer};
+            if(tags.trackNumber != null)
+              mediaAudio.trackNumber = tags.trackNumber;
+            if(tags.duration != null)
+              mediaAudio.duration = tags.duration;
+          }
+          /* unrecognised audio safety */
+          checkForNullTagsAudio(mediaAudio);
+        } else if(mediaItem instanceof MediaVideo) {
+          MediaVideo mediaVideo = (MediaVideo)mediaItem;
+          if(tags != null) {
+            if(tags.album != null)
+              mediaVideo.album = tags.album;
+            if(tags.artist != null)
+              mediaVideo.artists = new String[] {tags.artist};
+            if(tags.duration != null)
+              mediaVideo.duration = tags.duration;
+          }
+          /* unrecognised video safety */
+          if(mediaVideo.album == null)
+            mediaVideo.album = "Unknown";
+          if(mediaVideo.artists == null)
+            mediaVideo.artists = new String[] {"Unknown"};
+          else if(mediaVideo.artists[0] == null)
+            mediaVideo.artists[0] = "Unknown";
         }
-        /* unrecognised audio safety */
-        checkForNullTagsAudio(mediaAudio);
       }
-
-      Log.d("api", "album of " + mediaAudio.itemURI + " is " + mediaAudio.album);
-      Log.d("api", "artists of " + mediaAudio.itemURI + " is " + mediaAudio.artists[0]);
-      return mediaAudio;
     }
 
     private void checkForNullTagsAudio(MediaAudio mediaAudio) {
@@ -573,51 +559,6 @@ class LocalMediaSource extends MediaSource {
       else if(mediaAudio.genres[0] == null)
         mediaAudio.genres[0] = "Unknown";
     }
-
-    private MediaVideo newMediaVideo(Map<String, Object> valueSet) {
-      MediaVideo mediaVideo = new MediaVideo(valueSet);
-      if(mediaVideo.itemURI != null) {
-        /* use MediaMetadataRetriever to get media tags */
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-        mmr.setDataSource(mediaVideo.itemURI);
-        try {
-          mediaVideo.album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-          if(mediaVideo.album == null) mediaVideo.album = "Unknown";
-          mediaVideo.artists = new String[] {
-            mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST)
-          };
-          if(mediaVideo.artists[0] == null) mediaVideo.artists[0] = "Unknown";
-          mediaVideo.duration = Long.parseLong(
-            mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION),
-            10
-          );
-          /* geolocation not supported by MediaMetadataRetriever */
-          /* width not supported by MediaMetadataRetriever */
-          /* height not supported by MediaMetadataRetriever */
-          /* playedTime not supported by MediaMetadataRetriever */
-          /* playCount not supported by MediaMetadataRetriever */
-          mmr.release();
-        } catch(Exception e) {
-          Log.d("NewMeidaVideo", "Metadata retrieving error for: " + mediaVideo.itemURI + " Exception: " + e);
-        } finally {
-          /* unrecognised video safety */
-          if(mediaVideo.album == null)
-            mediaVideo.album = "Unknown";
-          if(mediaVideo.artists == null)
-            mediaVideo.artists = new String[] {"Unknown"};
-          else if(mediaVideo.artists[0] == null)
-            mediaVideo.artists[0] = "Unknown";
-        }
-      }
-
-      Log.d("api", "album of " + mediaVideo.itemURI + " is " + mediaVideo.album);
-      Log.d("api", "artists of " + mediaVideo.itemURI + " is " + mediaVideo.artists[0]);
-      return mediaVideo;
-    }
-
-    private MediaImage newMediaImage(Map<String, Object> valueSet) {
-      return (new MediaImage(valueSet));
-    }
   }
 
   /***************
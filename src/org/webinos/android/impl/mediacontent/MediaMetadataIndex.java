@@ -0,0 +1,364 @@
+package org.webinos.android.impl.mediacontent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import org.blinkenlights.jid3.*;
+import org.blinkenlights.jid3.v1.*;
+import org.blinkenlights.jid3.v2.*;
+
+/**
+ * A persistent index of the tags of audio and video files, so that tags
+ * are extracted once per change to a file rather than on every query.
+ * Entries are keyed by path and are only used while the file's size and
+ * modification date match those recorded with the entry. A background
+ * indexer fills the index for every audio and video file in MediaStore.
+ */
+class MediaMetadataIndex extends SQLiteOpenHelper {
+  private static final String TAG = MediaMetadataIndex.class.getName();
+
+  private static final int DB_VERSION = 1;
+  private static final String TABLE = "metadata";
+  private static final String[] COLUMNS = {
+    "path", "size", "date_modified", "album", "artist", "genre", "composer", "track", "duration"
+  };
+  /* rows looked up or extracted together */
+  private static final int BATCH_SIZE = 100;
+
+  /**
+   * The identity of a file as recorded by MediaStore.
+   */
+  static class Key {
+    final String path;
+    final long size;
+    final long dateModified;
+    final boolean audio;
+
+    Key(String path, long size, long dateModified, boolean audio) {
+      this.path = path;
+      this.size = size;
+      this.dateModified = dateModified;
+      this.audio = audio;
+    }
+  }
+
+  /**
+   * The tags of one file; any tag may be null if the file has none.
+   */
+  static class Metadata {
+    String album;
+    String artist;
+    String genre;
+    String composer;
+    Integer trackNumber;
+    Long duration;
+  }
+
+  private volatile boolean stopped;
+  private Thread indexer;
+  /* callers currently using the database, including a running indexer;
+   * once stopped, the last of them closes it. Guarded by this */
+  private int users;
+
+  MediaMetadataIndex(Context ctx, String volumeName) {
+    super(ctx, "media_metadata_" + volumeName + ".db", null, DB_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE + " (path TEXT PRIMARY KEY, size INTEGER, date_modified INTEGER, "
+        + "album TEXT, artist TEXT, genre TEXT, composer TEXT, track INTEGER, duration INTEGER)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+    onCreate(db);
+  }
+
+  /**
+   * Get the metadata of a set of files, extracting and indexing the
+   * tags of any file that is not indexed or has changed. Once the index
+   * is released no metadata is returned.
+   */
+  Map<String, Metadata> get(List<Key> keys) {
+    Map<String, Metadata> result = new HashMap<String, Metadata>();
+    if(!beginUse())
+      return result;
+    try {
+      getBatches(keys, result);
+    } finally {
+      endUse();
+    }
+    return result;
+  }
+
+  private void getBatches(List<Key> keys, Map<String, Metadata> result) {
+    for(int start = 0; start < keys.size(); start += BATCH_SIZE) {
+      List<Key> batch = keys.subList(start, Math.min(start + BATCH_SIZE, keys.size()));
+      Map<String, Metadata> found = lookup(batch);
+      List<Key> missing = new ArrayList<Key>();
+      for(Key key : batch) {
+        if(!found.containsKey(key.path))
+          missing.add(key);
+      }
+      List<Metadata> extracted = new ArrayList<Metadata>(missing.size());
+      for(Key key : missing) {
+        Metadata metadata = extract(key.path, key.audio);
+        extracted.add(metadata);
+        found.put(key.path, metadata);
+      }
+      if(!missing.isEmpty())
+        put(missing, extracted);
+      result.putAll(found);
+    }
+  }
+
+  /* the indexed metadata of files whose size and date are unchanged */
+  private Map<String, Metadata> lookup(List<Key> keys) {
+    Map<String, Metadata> result = new HashMap<String, Metadata>();
+    Map<String, Key> byPath = new HashMap<String, Key>();
+    StringBuilder selection = new StringBuilder("path IN (");
+    String[] selectionArgs = new String[keys.size()];
+    for(int i = 0; i < keys.size(); i++) {
+      selection.append(i == 0 ? "?" : ",?");
+      selectionArgs[i] = keys.get(i).path;
+      byPath.put(keys.get(i).path, keys.get(i));
+    }
+    selection.append(")");
+    Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, selection.toString(), selectionArgs, null, null, null);
+    try {
+      while(cursor.moveToNext()) {
+        Key key = byPath.get(cursor.getString(0));
+        if(key == null || key.size != cursor.getLong(1) || key.dateModified != cursor.getLong(2))
+          continue;
+        Metadata metadata = new Metadata();
+        metadata.album = cursor.getString(3);
+        metadata.artist = cursor.getString(4);
+        metadata.genre = cursor.getString(5);
+        metadata.composer = cursor.getString(6);
+        metadata.trackNumber = cursor.isNull(7) ? null : Integer.valueOf(cursor.getInt(7));
+        metadata.duration = cursor.isNull(8) ? null : Long.valueOf(cursor.getLong(8));
+        result.put(key.path, metadata);
+      }
+    } finally {
+      cursor.close();
+    }
+    return result;
+  }
+
+  private void put(List<Key> keys, List<Metadata> values) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for(int i = 0; i < keys.size(); i++) {
+        Key key = keys.get(i);
+        Metadata metadata = values.get(i);
+        ContentValues row = new ContentValues();
+        row.put("path", key.path);
+        row.put("size", key.size);
+        row.put("date_modified", key.dateModified);
+        row.put("album", metadata.album);
+        row.put("artist", metadata.artist);
+        row.put("genre", metadata.genre);
+        row.put("composer", metadata.composer);
+        row.put("track", metadata.trackNumber);
+        row.put("duration", metadata.duration);
+        db.insertWithOnConflict(TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /***************
+   * Tag extraction
+   ***************/
+
+  static Metadata extract(String path, boolean audio) {
+    Metadata metadata = new Metadata();
+    if(audio && path.toLowerCase().endsWith(".mp3"))
+      readID3Tags(path, metadata);
+
+    /* use MediaMetadataRetriever to get media tags; its values take
+     * precedence over the ID3 tags */
+    MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+    try {
+      mmr.setDataSource(path);
+      String value;
+      if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM)) != null)
+        metadata.album = value;
+      if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST)) != null)
+        metadata.artist = value;
+      if(audio) {
+        if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE)) != null)
+          metadata.genre = value;
+        if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER)) != null)
+          metadata.composer = value;
+        /* the track number may be given as "track/total" */
+        if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER)) != null) {
+          int slash = value.indexOf('/');
+          metadata.trackNumber = Integer.valueOf((slash == -1 ? value : value.substring(0, slash)).trim());
+        }
+      }
+      if((value = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) != null)
+        metadata.duration = Long.valueOf(value.trim());
+    } catch(Exception e) {
+      Log.d(TAG, "Metadata retrieving error for: " + path + " Exception: " + e);
+    } finally {
+      mmr.release();
+    }
+    return metadata;
+  }
+
+  /* handling MediaMetadataRetriever limitation, MP3 file handling with JID3 */
+  private static void readID3Tags(String path, Metadata metadata) {
+    MediaFile oMediaFile = new MP3File(new File(path));
+    try {
+      ID3Tag[] aoID3Tag = oMediaFile.getTags();
+      for(int i = 0; i < aoID3Tag.length; i++) {
+        if(aoID3Tag[i] instanceof ID3V1_0Tag) {
+          ID3V1_0Tag oID3V1_0Tag = (ID3V1_0Tag)aoID3Tag[i];
+          metadata.album = oID3V1_0Tag.getAlbum();
+          metadata.artist = oID3V1_0Tag.getArtist();
+          metadata.genre = oID3V1_0Tag.getGenre().toString();
+        } else if(aoID3Tag[i] instanceof ID3V2_3_0Tag) {
+          ID3V2_3_0Tag oID3V2_3_0Tag = (ID3V2_3_0Tag)aoID3Tag[i];
+          metadata.album = oID3V2_3_0Tag.getAlbum();
+          metadata.artist = oID3V2_3_0Tag.getArtist();
+          metadata.genre = oID3V2_3_0Tag.getGenre();
+          metadata.trackNumber = oID3V2_3_0Tag.getTrackNumber();
+        }
+      }
+    } catch (ID3Exception e) {
+      Log.d(TAG, "Getting mp3 tag error for " + path + " Exception: " + e);
+    }
+  }
+
+  /***************
+   * Background indexing
+   ***************/
+
+  /* index every audio and video file of a volume on a low priority thread */
+  synchronized void startIndexing(final ContentResolver contentResolver, final Uri contentUri) {
+    if(indexer != null || !beginUse())
+      return;
+    indexer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          index(contentResolver, contentUri);
+        } catch(Exception e) {
+          Log.d(TAG, "Indexing stopped; exception: " + e);
+        } finally {
+          synchronized(MediaMetadataIndex.this) {
+            indexer = null;
+          }
+          endUse();
+        }
+      }
+    }, "MediaMetadataIndex");
+    indexer.setDaemon(true);
+    indexer.setPriority(Thread.MIN_PRIORITY);
+    indexer.start();
+  }
+
+  private void index(ContentResolver contentResolver, Uri contentUri) {
+    long start = System.currentTimeMillis();
+    String[] projection = {
+      MediaStore.Files.FileColumns.DATA,
+      MediaStore.Files.FileColumns.SIZE,
+      MediaStore.Files.FileColumns.DATE_MODIFIED,
+      MediaStore.Files.FileColumns.MEDIA_TYPE
+    };
+    String selection = MediaStore.Files.FileColumns.MEDIA_TYPE + " IN ("
+        + MediaStore.Files.FileColumns.MEDIA_TYPE_AUDIO + ","
+        + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ")";
+    HashSet<String> paths = new HashSet<String>();
+    Cursor cursor = contentResolver.query(contentUri, projection, selection, null, MediaStore.Files.FileColumns._ID);
+    if(cursor == null)
+      return;
+    try {
+      List<Key> batch = new ArrayList<Key>(BATCH_SIZE);
+      while(!stopped && cursor.moveToNext()) {
+        String path = cursor.getString(0);
+        if(path == null)
+          continue;
+        paths.add(path);
+        batch.add(new Key(path, cursor.getLong(1), cursor.getLong(2),
+            cursor.getInt(3) == MediaStore.Files.FileColumns.MEDIA_TYPE_AUDIO));
+        if(batch.size() == BATCH_SIZE) {
+          get(batch);
+          batch.clear();
+        }
+      }
+      if(!stopped && !batch.isEmpty())
+        get(batch);
+    } finally {
+      cursor.close();
+    }
+    if(stopped)
+      return;
+
+    /* remove the entries of files no longer in MediaStore */
+    SQLiteDatabase db = getWritableDatabase();
+    List<String> removed = new ArrayList<String>();
+    Cursor indexed = db.query(TABLE, new String[] {"path"}, null, null, null, null, null);
+    try {
+      while(indexed.moveToNext()) {
+        if(!paths.contains(indexed.getString(0)))
+          removed.add(indexed.getString(0));
+      }
+    } finally {
+      indexed.close();
+    }
+    db.beginTransaction();
+    try {
+      for(String path : removed)
+        db.delete(TABLE, "path = ?", new String[] {path});
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Log.d(TAG, "indexed " + paths.size() + " files, removed " + removed.size() + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /* register a user of the database, unless the index has been released */
+  private synchronized boolean beginUse() {
+    if(stopped)
+      return false;
+    ++users;
+    return true;
+  }
+
+  private synchronized void endUse() {
+    if(--users == 0 && stopped)
+      close();
+  }
+
+  /* stop any indexing and close the database; if the indexer or a lookup
+   * is still using it, the last of them closes it when it finishes */
+  synchronized void release() {
+    stopped = true;
+    if(indexer != null)
+      indexer.interrupt();
+    if(users == 0)
+      close();
+  }
+}
@@ -0,0 +1,115 @@
+package org.webinos.android.impl.mediacontent;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Collects the paths of changed files and asks the media scanner to scan
+ * just those paths, once changes have been quiet for DEBOUNCE_MILLIS (or
+ * at most MAX_DELAY_MILLIS after the first). A file changed many times
+ * within the window is scanned once.
+ */
+class MediaScanQueue {
+  private static final String TAG = MediaScanQueue.class.getName();
+
+  static final long DEBOUNCE_MILLIS = 1000;
+  static final long MAX_DELAY_MILLIS = 5000;
+  /* the most paths passed in one scanFile request */
+  static final int MAX_BATCH = 64;
+
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "MediaScanQueue");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private final Context ctx;
+  private LinkedHashSet<String> pending = new LinkedHashSet<String>();
+  private ScheduledFuture<?> flush;
+  private long firstPending;
+
+  /* statistics */
+  private long events;
+  private long coalesced;
+  private long scanRequests;
+  private long pathsScanned;
+
+  private final Runnable flusher = new Runnable() {
+    public void run() {
+      flush();
+    }
+  };
+
+  MediaScanQueue(Context ctx) {
+    this.ctx = ctx;
+  }
+
+  /* record a change to the file at path */
+  synchronized void add(String path) {
+    ++events;
+    if(!pending.add(path))
+      ++coalesced;
+    long now = System.currentTimeMillis();
+    if(flush == null)
+      firstPending = now;
+    else
+      flush.cancel(false);
+    long delay = Math.max(Math.min(DEBOUNCE_MILLIS, firstPending + MAX_DELAY_MILLIS - now), 0);
+    flush = scheduler.schedule(flusher, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /* drop any pending paths without scanning them */
+  synchronized void clear() {
+    if(flush != null) {
+      flush.cancel(false);
+      flush = null;
+    }
+    pending.clear();
+  }
+
+  private void flush() {
+    String[] paths;
+    synchronized(this) {
+      flush = null;
+      paths = pending.toArray(new String[pending.size()]);
+      pending = new LinkedHashSet<String>();
+    }
+    for(int start = 0; start < paths.length; start += MAX_BATCH) {
+      int end = Math.min(start + MAX_BATCH, paths.length);
+      String[] batch = new String[end - start];
+      System.arraycopy(paths, start, batch, 0, batch.length);
+      MediaScannerConnection.scanFile(ctx, batch, null, new MediaScannerConnection.OnScanCompletedListener() {
+        public void onScanCompleted(String path, Uri uri) {
+          Log.v(TAG, "scanned " + path);
+        }
+      });
+      synchronized(this) {
+        ++scanRequests;
+        pathsScanned += batch.length;
+      }
+    }
+    Log.v(TAG, toString());
+  }
+
+  synchronized long getEvents() { return events; }
+  synchronized long getCoalesced() { return coalesced; }
+  synchronized long getScanRequests() { return scanRequests; }
+  synchronized long getPathsScanned() { return pathsScanned; }
+
+  @Override
+  public synchronized String toString() {
+    return "events=" + events + " coalesced=" + coalesced
+        + " scanRequests=" + scanRequests + " pathsScanned=" + pathsScanned;
+  }
+}
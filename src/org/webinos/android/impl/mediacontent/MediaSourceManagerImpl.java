@@ -1,5 +1,8 @@
 package org.webinos.android.impl.mediacontent;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.meshpoint.anode.AndroidContext;
 import org.meshpoint.anode.module.IModule;
 import org.meshpoint.anode.module.IModuleContext;
@@ -17,8 +20,20 @@ public class MediaSourceManagerImpl extends MediaSourceManager implements IModul
   private IModuleContext moduleContext;
   private Context androidContext;
 
+  /* one media source per volume, shared by all callers */
+  private Map<String, LocalMediaSource> localMediaSources = new HashMap<String, LocalMediaSource>();
+
   public MediaSource getLocalMediaSource() {
-    return new LocalMediaSource(androidContext, "external", GetFoldersStrategy.ALL);
+    return getLocalMediaSource("external");
+  }
+
+  private synchronized LocalMediaSource getLocalMediaSource(String volumeName) {
+    LocalMediaSource mediaSource = localMediaSources.get(volumeName);
+    if(mediaSource == null) {
+      mediaSource = new LocalMediaSource(androidContext, volumeName, GetFoldersStrategy.ALL);
+      localMediaSources.put(volumeName, mediaSource);
+    }
+    return mediaSource;
   }
 
   @Override
@@ -35,5 +50,10 @@ public class MediaSourceManagerImpl extends MediaSourceManager implements IModul
   @Override
   public void stopModule() {
     Log.v(TAG, "stopModule");
+    synchronized(this) {
+      for(LocalMediaSource mediaSource : localMediaSources.values())
+        mediaSource.release();
+      localMediaSources.clear();
+    }
   }
 }
@@ -0,0 +1,228 @@
+package org.webinos.android.impl.mediacontent;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.webinos.android.impl.mediacontent.Mapping.CompositeDbField;
+import org.webinos.android.impl.mediacontent.Mapping.DbField;
+import org.webinos.android.impl.mediacontent.Mapping.SingleDbField;
+import org.webinos.api.mediacontent.MediaAudio;
+import org.webinos.api.mediacontent.MediaImage;
+import org.webinos.api.mediacontent.MediaItem;
+import org.webinos.api.mediacontent.MediaVideo;
+
+import android.database.Cursor;
+
+/**
+ * Maps the rows of a findItems query to MediaItems. The column index,
+ * getter, translator and target field of every mapped attribute are
+ * resolved once per projection, so mapping a row reads each column with
+ * a typed getter and assigns the item's field directly. A mapper holds no
+ * per-row state, so the one for a projection is shared by concurrent
+ * queries.
+ */
+class RowMapper {
+  private static final Map<List<String>, RowMapper> mappers = new HashMap<List<String>, RowMapper>();
+
+  /* how a column is read */
+  private static final int STRING = 0;
+  private static final int LONG = 1;
+  private static final int INT = 2;
+  private static final int FLOAT = 3;
+  private static final int DOUBLE = 4;
+
+  private final Binding typeBinding;
+  private final Binding[] audioBindings;
+  private final Binding[] videoBindings;
+  private final Binding[] imageBindings;
+
+  /* get the mapper for a projection, creating it on first use */
+  static synchronized RowMapper get(String[] projection) {
+    List<String> key = Arrays.asList(projection);
+    RowMapper mapper = mappers.get(key);
+    if(mapper == null) {
+      mapper = new RowMapper(projection);
+      mappers.put(key, mapper);
+    }
+    return mapper;
+  }
+
+  private RowMapper(String[] projection) {
+    typeBinding = bind(projection, MediaItem.class, "type");
+    audioBindings = bindAll(projection, MediaAudio.class);
+    videoBindings = bindAll(projection, MediaVideo.class);
+    imageBindings = bindAll(projection, MediaImage.class);
+  }
+
+  /**
+   * Map the current row of a cursor.
+   * @return the item, or null if the row is not an audio, video or image item
+   */
+  MediaItem map(Cursor cursor) throws IllegalAccessException {
+    String type = (String)typeBinding.read(cursor);
+    MediaItem mediaItem;
+    Binding[] bindings;
+    if(MediaItem.MEDIATYPE_AUDIO.equals(type)) {
+      mediaItem = new MediaAudio();
+      bindings = audioBindings;
+    } else if(MediaItem.MEDIATYPE_VIDEO.equals(type)) {
+      mediaItem = new MediaVideo();
+      bindings = videoBindings;
+    } else if(MediaItem.MEDIATYPE_IMAGE.equals(type)) {
+      mediaItem = new MediaImage();
+      bindings = imageBindings;
+    } else {
+      return null;
+    }
+    for(Binding binding : bindings)
+      binding.assign(cursor, mediaItem);
+    return mediaItem;
+  }
+
+  /***************
+   * Bindings
+   ***************/
+
+  private static Binding[] bindAll(String[] projection, Class<? extends MediaItem> clazz) {
+    List<Binding> bindings = new ArrayList<Binding>();
+    for(String attribute : Mapping.getAttributes()) {
+      Binding binding = bind(projection, clazz, attribute);
+      if(binding != null)
+        bindings.add(binding);
+    }
+    return bindings.toArray(new Binding[bindings.size()]);
+  }
+
+  private static Binding bind(String[] projection, Class<?> clazz, String attribute) {
+    Field field;
+    try {
+      field = clazz.getField(attribute);
+    } catch(NoSuchFieldException e) {
+      return null;
+    }
+    DbField dbField = Mapping.getDbField(attribute);
+    if(dbField instanceof SingleDbField)
+      return new Binding(field, column(projection, (SingleDbField)dbField, field.getType()));
+    if(dbField instanceof CompositeDbField) {
+      CompositeDbField compositeDbField = (CompositeDbField)dbField;
+      if(compositeDbField.getCompositeHandler() == null)
+        return null;
+      SingleDbField[] dbFields = compositeDbField.getDbFields();
+      Column[] parts = new Column[dbFields.length];
+      for(int i = 0; i < dbFields.length; i++)
+        parts[i] = column(projection, dbFields[i], Double.class);
+      return new Binding(field, parts, compositeDbField.getCompositeHandler());
+    }
+    return null;
+  }
+
+  private static Column column(String[] projection, SingleDbField dbField, Class<?> attributeType) {
+    return new Column(
+      Arrays.asList(projection).indexOf(dbField.getName()),
+      getterFor(dbField.getTranslator(), attributeType),
+      dbField.getTranslator()
+    );
+  }
+
+  /* the getter matching the value a translator expects, or else the attribute's type */
+  private static int getterFor(Translator translator, Class<?> attributeType) {
+    if(translator instanceof Translator.MappingTranslator || translator instanceof Translator.DateTranslator)
+      return LONG;
+    if(translator != null)
+      return STRING;
+    if(attributeType == long.class || attributeType == Long.class)
+      return LONG;
+    if(attributeType == int.class || attributeType == Integer.class)
+      return INT;
+    if(attributeType == float.class || attributeType == Float.class)
+      return FLOAT;
+    if(attributeType == double.class || attributeType == Double.class)
+      return DOUBLE;
+    return STRING;
+  }
+
+  private static class Column {
+    private final int index;
+    private final int getter;
+    private final Translator translator;
+
+    Column(int index, int getter, Translator translator) {
+      this.index = index;
+      this.getter = getter;
+      this.translator = translator;
+    }
+
+    boolean isNull(Cursor cursor) {
+      return index == -1 || cursor.isNull(index);
+    }
+
+    /* the translated value of the column, which may be null */
+    Object read(Cursor cursor) {
+      Object value = null;
+      if(!isNull(cursor)) {
+        switch(getter) {
+        case LONG: value = cursor.getLong(index); break;
+        case INT: value = cursor.getInt(index); break;
+        case FLOAT: value = cursor.getFloat(index); break;
+        case DOUBLE: value = cursor.getDouble(index); break;
+        default: value = cursor.getString(index);
+        }
+      }
+      if(translator != null)
+        value = translator.getAttribValue(value);
+      return value;
+    }
+  }
+
+  private static class Binding {
+    private final Field field;
+    private final Column column;
+    private final Column[] parts;
+    private final CompositeHandler compositeHandler;
+
+    Binding(Field field, Column column) {
+      this.field = field;
+      this.column = column;
+      this.parts = null;
+      this.compositeHandler = null;
+    }
+
+    Binding(Field field, Column[] parts, CompositeHandler compositeHandler) {
+      this.field = field;
+      this.column = null;
+      this.parts = parts;
+      this.compositeHandler = compositeHandler;
+    }
+
+    Object read(Cursor cursor) {
+      if(column != null)
+        return column.read(cursor);
+      Object[] values = new Object[parts.length];
+      for(int i = 0; i < parts.length; i++)
+        values[i] = parts[i].read(cursor);
+      return compositeHandler.getComposite(values);
+    }
+
+    /* set the field from the row; a null value leaves the field unset */
+    void assign(Cursor cursor, MediaItem mediaItem) throws IllegalAccessException {
+      if(column != null && column.translator == null && field.getType().isPrimitive()) {
+        /* untranslated primitives are assigned without boxing */
+        if(column.isNull(cursor))
+          return;
+        switch(column.getter) {
+        case LONG: field.setLong(mediaItem, cursor.getLong(column.index)); return;
+        case INT: field.setInt(mediaItem, cursor.getInt(column.index)); return;
+        case FLOAT: field.setFloat(mediaItem, cursor.getFloat(column.index)); return;
+        case DOUBLE: field.setDouble(mediaItem, cursor.getDouble(column.index)); return;
+        }
+      }
+      Object value = read(cursor);
+      if(value != null)
+        field.set(mediaItem, value);
+    }
+  }
+}
@@ -3,7 +3,6 @@ package org.webinos.android.impl.mediacontent;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.webinos.api.mediacontent.MediaImage;
 import org.webinos.api.mediacontent.MediaItem;
@@ -17,7 +16,14 @@ interface Translator {
   // Assumes one-to-one mapping
   static class MappingTranslator implements Translator {
     protected Map<Object, Object> mapping = new HashMap<Object, Object>();
+    /* the inverse of mapping, so attribute values are found without a scan */
+    private Map<Object, Object> reverseMapping = new HashMap<Object, Object>();
     protected Object defaultValue;
+
+    protected void map(Object attribValue, Object dbValue) {
+      mapping.put(attribValue, dbValue);
+      reverseMapping.put(dbValue, attribValue);
+    }
     
     @Override
     public Object getDbValue(Object attribValue) {
@@ -27,32 +33,27 @@ interface Translator {
 
     @Override
     public Object getAttribValue(Object dbValue) {
-      for (Entry<Object, Object> entry : mapping.entrySet()) {
-        Object val = entry.getValue();
-        if (val.equals(dbValue)) {
-          return entry.getKey();
-        }
-      }
-      return defaultValue;
+      Object attribValue = reverseMapping.get(dbValue);
+      return attribValue != null ? attribValue : defaultValue;
     }
   }
 
   static class OrientationTranslator extends MappingTranslator {
     public OrientationTranslator() {
-      mapping.put(MediaImage.ORIENTATION_NORMAL, 0L);
-      mapping.put(MediaImage.ORIENTATION_ROTATE_90, 90L);
-      mapping.put(MediaImage.ORIENTATION_ROTATE_180, 180L);
-      mapping.put(MediaImage.ORIENTATION_ROTATE_270, 270L);
+      map(MediaImage.ORIENTATION_NORMAL, 0L);
+      map(MediaImage.ORIENTATION_ROTATE_90, 90L);
+      map(MediaImage.ORIENTATION_ROTATE_180, 180L);
+      map(MediaImage.ORIENTATION_ROTATE_270, 270L);
       defaultValue = MediaImage.ORIENTATION_NORMAL;
     }
   }
 
   static class MediaTypeTranslator extends MappingTranslator {
     public MediaTypeTranslator() {
-      mapping.put(MediaItem.MEDIATYPE_IMAGE, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE));
-      mapping.put(MediaItem.MEDIATYPE_VIDEO, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO));
-      mapping.put(MediaItem.MEDIATYPE_AUDIO, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_AUDIO));
-      mapping.put(MediaItem.MEDIATYPE_UNKNOWN, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_NONE));
+      map(MediaItem.MEDIATYPE_IMAGE, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE));
+      map(MediaItem.MEDIATYPE_VIDEO, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO));
+      map(MediaItem.MEDIATYPE_AUDIO, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_AUDIO));
+      map(MediaItem.MEDIATYPE_UNKNOWN, Long.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_NONE));
       defaultValue = MediaItem.MEDIATYPE_UNKNOWN;
     }
   }
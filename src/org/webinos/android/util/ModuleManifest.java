@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011-2012 Paddy Byers
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.webinos.android.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import android.util.Log;
+
+/**
+ * A record of the SHA-1 digest of the package resource from which each
+ * installed module was installed, together with a stamp identifying the
+ * package that was last checked. This allows unchanged modules to be
+ * retained across package updates, and all hashing to be skipped when
+ * the package itself has not changed.
+ */
+public class ModuleManifest {
+	private static final String TAG = "org.webinos.android.util.ModuleManifest";
+
+	/* key for the package stamp; cannot clash with an asset name */
+	private static final String KEY_PACKAGE = "/package";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final Properties digests = new Properties();
+
+	public ModuleManifest(File file) {
+		this.file = file;
+		if(file.exists()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				digests.load(in);
+			} catch(IOException e) {
+				/* treat as empty; modules will be rehashed and reinstalled as necessary */
+				Log.v(TAG, "Unable to read manifest; exception: " + e);
+				digests.clear();
+			} finally {
+				try { if(in != null) in.close(); } catch(IOException e) {}
+			}
+		}
+	}
+
+	public synchronized String getDigest(String module) {
+		return digests.getProperty(module);
+	}
+
+	public synchronized void setDigest(String module, String digest) {
+		digests.setProperty(module, digest);
+	}
+
+	public synchronized void remove(String module) {
+		digests.remove(module);
+	}
+
+	public synchronized String getPackageStamp() {
+		return digests.getProperty(KEY_PACKAGE);
+	}
+
+	public synchronized void setPackageStamp(String stamp) {
+		if(stamp == null)
+			digests.remove(KEY_PACKAGE);
+		else
+			digests.setProperty(KEY_PACKAGE, stamp);
+	}
+
+	/* an identifier for the given package file that changes when it is updated */
+	public static String getPackageStamp(File pkg) {
+		return pkg.lastModified() + ":" + pkg.length();
+	}
+
+	/**
+	 * Write the manifest; it is written to a temporary file first so that
+	 * an interrupted write cannot leave a truncated manifest in place.
+	 */
+	public synchronized void save() {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpFile);
+			digests.store(out, null);
+			out.close();
+			out = null;
+			if(!tmpFile.renameTo(file))
+				throw new IOException("Unable to rename " + tmpFile.toString());
+		} catch(IOException e) {
+			Log.v(TAG, "Unable to write manifest; exception: " + e);
+			tmpFile.delete();
+		} finally {
+			try { if(out != null) out.close(); } catch(IOException e) {}
+		}
+	}
+
+	/**
+	 * Compute the hex SHA-1 digest of the content of a stream.
+	 * The stream is closed on return.
+	 */
+	public static String digest(InputStream in) throws IOException {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			byte[] buf = new byte[BUFFER_SIZE];
+			int count;
+			while((count = in.read(buf)) != -1)
+				sha.update(buf, 0, count);
+			return ModuleUtils.digest2Hex(sha.digest());
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		} finally {
+			in.close();
+		}
+	}
+}
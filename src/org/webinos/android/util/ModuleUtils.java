@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.HttpClient;
@@ -32,6 +33,7 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.webinos.android.util.Constants;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class ModuleUtils {
@@ -66,10 +68,14 @@ public class ModuleUtils {
 	
 	public interface Unpacker {
 		public void unpack(File src, File dest) throws IOException;
+		/* unpack directly from a stream, without a copy of the archive on disk;
+		 * the stream is consumed and closed */
+		public void unpack(InputStream src, File dest) throws IOException;
 	}
 		
-	/* for hashing names and tmp files */
-	private static int counter = 0;
+	/* for hashing names and tmp files; modules may be installed concurrently */
+	private static final AtomicInteger counter = new AtomicInteger();
+	private static final int BUFFER_SIZE = 64 * 1024;
 	private static final int HASH_LEN = 20;
 	
 	/* cache dir for tmp and downloaded resources */
@@ -113,17 +119,17 @@ public class ModuleUtils {
 				return;
 			}
 		
-		/* extract to temp file if an asset */
+		/* stream directly into place if an asset */
 		} else if(path.startsWith(AssetUtils.ASSET_URI)) {
+			InputStream in;
 			try {
-				String filename = ModuleUtils.getResourceUriHash(path);
-				String destination = new File(resourceDir, filename).getAbsolutePath();
-				moduleResource = AssetUtils.writeAssetToFile(ctx, path.substring(AssetUtils.ASSET_URI.length()), destination);
-				remove_tmp_resource = true;
+				in = ctx.getAssets().open(path.substring(AssetUtils.ASSET_URI.length()));
 			} catch(IOException e) {
-				Log.v(TAG, "install: aborting (unable to extract resource); exception: " + e + "; resource = " + path);
+				Log.v(TAG, "install: aborting (unable to open resource); exception: " + e + "; resource = " + path);
 				return;
 			}
+			install(in, module, modType);
+			return;
 
 		} else {
 			moduleResource = new File(path);
@@ -157,6 +163,107 @@ public class ModuleUtils {
 		Log.v(TAG, "install: aborting (unable to copy resource); resource = " + path + ", destination = " + installLocation.toString());
 	}
 
+	/**
+	 * Install a module from a stream. The module is unpacked (or copied) into
+	 * a staging location in the module directory and then renamed into place,
+	 * so a module is never visible in a partially-installed state and no
+	 * intermediate copies of the archive or the unpacked tree are made. Any
+	 * existing version of the module is replaced. The stream is closed on return.
+	 * @return true if the module was installed
+	 */
+	public static boolean install(InputStream in, String module, ModuleType modType) {
+		moduleDir.mkdirs();
+		File installLocation = getModuleFile(module, modType);
+		File staging = new File(moduleDir, '.' + installLocation.getName() + '-' + counter.getAndIncrement() + "-tmp");
+		long start = SystemClock.elapsedRealtime();
+		try {
+			if(modType.unpacker != null) {
+				if(!staging.mkdir())
+					throw new IOException("Unable to create staging directory: " + staging.toString());
+				modType.unpacker.unpack(in, staging);
+			} else {
+				copyStream(in, staging);
+			}
+			if(!replace(staging, installLocation))
+				throw new IOException("Unable to move module into place: " + installLocation.toString());
+		} catch(IOException e) {
+			Log.v(TAG, "install: aborting; exception: " + e + "; module = " + module);
+			deleteFile(staging);
+			return false;
+		} finally {
+			try { in.close(); } catch(IOException e) {}
+		}
+		Log.v(TAG, "install: success; module = " + module + ", destination = " + installLocation.toString()
+				+ ", time = " + (SystemClock.elapsedRealtime() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * Delete staging directories, and previous versions moved aside by
+	 * replace(), left in the module directory by installs that were
+	 * interrupted, e.g. by the process being killed. A previous version
+	 * whose module is no longer installed is restored instead. Must not be
+	 * called while an install is in progress.
+	 */
+	public static void deleteStaging() {
+		String[] names = moduleDir.list();
+		if(names == null)
+			return;
+		for(String name : names) {
+			if(!name.startsWith("."))
+				continue;
+			if(name.endsWith("-tmp")) {
+				Log.v(TAG, "deleteStaging: removing " + name);
+				deleteFile(new File(moduleDir, name));
+			} else if(name.endsWith("-old")) {
+				/* .<module>-<n>-old */
+				File previous = new File(moduleDir, name);
+				String module = name.substring(1, name.length() - "-old".length());
+				int counterStart = module.lastIndexOf('-');
+				if(counterStart > 0) {
+					File installLocation = new File(moduleDir, module.substring(0, counterStart));
+					if(!installLocation.exists() && previous.renameTo(installLocation)) {
+						Log.v(TAG, "deleteStaging: restored " + name + " to " + installLocation.getName());
+						continue;
+					}
+				}
+				Log.v(TAG, "deleteStaging: removing " + name);
+				deleteFile(previous);
+			}
+		}
+	}
+
+	/* atomically move a staged module to its install location; any existing
+	 * version is first moved aside, and restored if the rename fails */
+	private static boolean replace(File staging, File installLocation) {
+		File previous = null;
+		if(installLocation.exists()) {
+			previous = new File(moduleDir, '.' + installLocation.getName() + '-' + counter.getAndIncrement() + "-old");
+			if(!installLocation.renameTo(previous))
+				return false;
+		}
+		if(!staging.renameTo(installLocation)) {
+			if(previous != null)
+				previous.renameTo(installLocation);
+			return false;
+		}
+		if(previous != null)
+			deleteFile(previous);
+		return true;
+	}
+
+	private static void copyStream(InputStream in, File dest) throws IOException {
+		FileOutputStream fos = new FileOutputStream(dest);
+		try {
+			int count;
+			byte[] buf = new byte[BUFFER_SIZE];
+			while((count = in.read(buf)) != -1)
+				fos.write(buf, 0, count);
+		} finally {
+			fos.close();
+		}
+	}
+
 	public static void uninstall(String module) {
 		
 		/* if no module was specified, it is an error */
@@ -250,10 +357,10 @@ public class ModuleUtils {
 			FileOutputStream fos = null;
 			try {
 				int count;
-				byte[] buf = new byte[1024];
+				byte[] buf = new byte[BUFFER_SIZE];
 				fis = new FileInputStream(src);             
 				fos = new FileOutputStream(dest);             
-				while ((count = fis.read(buf, 0, 1024)) != -1)
+				while ((count = fis.read(buf, 0, BUFFER_SIZE)) != -1)
 					fos.write(buf, 0, count);
 			} catch(IOException e) {
 				Log.v(TAG, "moveFile exception: aborting; exception: " + e + "; src = " + src.toString() + "; dest = " + dest.toString());
@@ -281,7 +388,7 @@ public class ModuleUtils {
 
 	public static File unpack(File moduleResource, String moduleName, ModuleType modType) throws IOException {
 		/* create temp dir to unpack; assume no hash collision */
-		String tmpDirName = moduleName + '-' + String.valueOf(counter++) + "-tmp";
+		String tmpDirName = moduleName + '-' + String.valueOf(counter.getAndIncrement()) + "-tmp";
 		File result = new File(resourceDir, tmpDirName);
 		if(!result.isDirectory() && !result.mkdir())
 			throw new IOException("Unable to create tmp directory to unpack: " + result.toString());
@@ -338,7 +445,7 @@ public class ModuleUtils {
 		}
 	}
 
-	private static String digest2Hex(byte[] digest) {
+	static String digest2Hex(byte[] digest) {
 		StringBuilder hash = new StringBuilder(HASH_LEN * 2);
 		final String hexChars = "0123456789abcdef";
 		for(int i = 0; i < HASH_LEN; i++) {
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011-2012 Paddy Byers
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.webinos.android.util;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Message payload packing for the WRT channel. Payloads up to
+ * INLINE_THRESHOLD chars travel inline in the message Bundle as before;
+ * larger payloads are written to a pipe by a background writer and only
+ * the read end of the pipe is passed across binder, which avoids the
+ * binder transaction size limit and the extra copies of the payload.
+ */
+public class PipeTransport {
+	private static final String TAG = "org.webinos.android.util.PipeTransport";
+
+	public static final String KEY_DATA   = "data";
+	public static final String KEY_FD     = "fd";
+	public static final String KEY_LENGTH = "length";
+
+	/* largest payload (in chars) that is sent inline */
+	public static final int INLINE_THRESHOLD = 64 * 1024;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final String ENCODING = "UTF-8";
+
+	/* each piped payload has its own writer thread, which blocks until the
+	 * remote side has read the pipe or closed it, so a reader that never
+	 * does holds up only its own payload. Once this many writers are
+	 * outstanding, further payloads are sent inline */
+	private static final int MAX_WRITERS = 8;
+	private static final AtomicInteger writers = new AtomicInteger();
+
+	/**
+	 * Create a Bundle carrying the given payload. The caller must call
+	 * release() on the result once the containing message has been sent.
+	 */
+	public static Bundle pack(final String data) throws IOException {
+		Bundle bundle = new Bundle();
+		if(data == null || data.length() <= INLINE_THRESHOLD || !reserveWriter()) {
+			bundle.putString(KEY_DATA, data);
+			return bundle;
+		}
+		ParcelFileDescriptor[] pipe;
+		try {
+			pipe = ParcelFileDescriptor.createPipe();
+		} catch(IOException e) {
+			writers.decrementAndGet();
+			throw e;
+		}
+		final ParcelFileDescriptor sink = pipe[1];
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				Writer writer = null;
+				try {
+					writer = new OutputStreamWriter(new ParcelFileDescriptor.AutoCloseOutputStream(sink), ENCODING);
+					writer.write(data);
+					writer.flush();
+				} catch(IOException e) {
+					Log.v(TAG, "pack: unable to write payload; exception: " + e);
+				} finally {
+					try {
+						if(writer != null) writer.close();
+						else sink.close();
+					} catch(IOException e) {}
+					writers.decrementAndGet();
+				}
+			}
+		}, "PipeTransport writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		bundle.putParcelable(KEY_FD, pipe[0]);
+		bundle.putInt(KEY_LENGTH, data.length());
+		return bundle;
+	}
+
+	/**
+	 * Create a Bundle carrying the given payload inline, whatever its size,
+	 * for a peer that only understands the version 1 protocol.
+	 */
+	public static Bundle packInline(String data) {
+		Bundle bundle = new Bundle();
+		bundle.putString(KEY_DATA, data);
+		return bundle;
+	}
+
+	private static boolean reserveWriter() {
+		if(writers.incrementAndGet() <= MAX_WRITERS)
+			return true;
+		writers.decrementAndGet();
+		Log.v(TAG, "pack: " + MAX_WRITERS + " writers outstanding; sending payload inline");
+		return false;
+	}
+
+	/**
+	 * Release the local resources held by a Bundle created by pack(), or
+	 * a received Bundle that is dropped without being unpacked; closing
+	 * the read end lets the writer finish. The remote side holds its own
+	 * duplicate of any descriptor.
+	 */
+	public static void release(Bundle bundle) {
+		ParcelFileDescriptor source = bundle.getParcelable(KEY_FD);
+		if(source != null) {
+			try { source.close(); } catch(IOException e) {}
+		}
+	}
+
+	/**
+	 * Extract the payload from a received Bundle, streaming it from the
+	 * pipe if it was not sent inline.
+	 */
+	public static String unpack(Bundle bundle) throws IOException {
+		ParcelFileDescriptor source = bundle.getParcelable(KEY_FD);
+		if(source == null)
+			return bundle.getString(KEY_DATA);
+
+		StringBuilder result = new StringBuilder(bundle.getInt(KEY_LENGTH, BUFFER_SIZE));
+		Reader reader = new InputStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(source), ENCODING);
+		try {
+			char[] buf = new char[BUFFER_SIZE];
+			int count;
+			while((count = reader.read(buf)) != -1)
+				result.append(buf, 0, count);
+		} finally {
+			reader.close();
+		}
+		return result.toString();
+	}
+}
@@ -17,11 +17,11 @@
 package org.webinos.android.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
 import org.xeustechnologies.jtar.TarEntry;
@@ -29,40 +29,58 @@ import org.xeustechnologies.jtar.TarInputStream;
 
 public class TarExtractor implements ModuleUtils.Unpacker {
 
-	public void unpack(File src, File dest) throws IOException {
-		/* first extract the tar file */
-		File tarFile = new File(src.getAbsolutePath() + ".tar");
-		byte[] buf = new byte[1024];
-		GZIPInputStream zis = null;
-		zis = new GZIPInputStream(new FileInputStream(src));
-		FileOutputStream tarfos = new FileOutputStream(tarFile);             
-		int count;
-		while ((count = zis.read(buf, 0, 1024)) != -1)
-			tarfos.write(buf, 0, count);
-		tarfos.close(); 
-		zis.close();
+	private static final int BUFFER_SIZE = 64 * 1024;
 
-		/* now unpack the tar */
-		TarInputStream tis = new TarInputStream(new BufferedInputStream(new FileInputStream(tarFile)));
-		TarEntry entry;
-		while((entry = tis.getNextEntry()) != null) {
-			File entryFile = new File(dest, entry.getName());
-			File parentDir = new File(entryFile.getParent());
-			if(!parentDir.isDirectory() && !parentDir.mkdirs())
-				throw new IOException("TarExtractor.unpack(): unable to create directory");
+	public void unpack(File src, File dest) throws IOException {
+		InputStream in = new FileInputStream(src);
+		try {
+			unpack(in, dest);
+		} finally {
+			in.close();
+		}
+	}
 
-			FileOutputStream fos = new FileOutputStream(entryFile);
-			BufferedOutputStream bos = new BufferedOutputStream(fos);
-			while((count = tis.read(buf)) != -1)
-				bos.write(buf, 0, count);
+	/* decompress and unpack in a single pass, without an intermediate tar file */
+	public void unpack(InputStream src, File dest) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		int count;
+		TarInputStream tis = new TarInputStream(new BufferedInputStream(new GZIPInputStream(src, BUFFER_SIZE), BUFFER_SIZE));
+		try {
+			TarEntry entry;
+			while((entry = tis.getNextEntry()) != null) {
+				File entryFile = new File(dest, entry.getName());
+				if(entry.isDirectory()) {
+					if(!entryFile.isDirectory() && !entryFile.mkdirs())
+						throw new IOException("TarExtractor.unpack(): unable to create directory entry");
+					continue;
+				}
+				File parentDir = entryFile.getParentFile();
+				if(!parentDir.isDirectory() && !parentDir.mkdirs())
+					throw new IOException("TarExtractor.unpack(): unable to create directory");
 
-			bos.flush();
-			bos.close();
+				FileOutputStream fos = new FileOutputStream(entryFile);
+				try {
+					while((count = tis.read(buf)) != -1)
+						fos.write(buf, 0, count);
+				} finally {
+					fos.close();
+				}
+				setMode(entryFile, entry.getHeader().mode);
+			}
+		} finally {
+			/* releases the inflater; the caller's stream is closed with it */
+			tis.close();
 		}
-		tis.close();		
+	}
 
-		/* delete the tar file */
-		tarFile.delete();
+	/* apply the permission bits that java.io.File can express */
+	private static void setMode(File file, int mode) {
+		if((mode & 0111) != 0)
+			file.setExecutable(true, (mode & 0011) == 0);
+		if((mode & 0044) != 0)
+			file.setReadable(true, false);
+		if((mode & 0200) == 0)
+			file.setWritable(false, false);
 	}
 
 }
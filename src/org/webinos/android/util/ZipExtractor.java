@@ -16,21 +16,33 @@
 
 package org.webinos.android.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class ZipExtractor implements ModuleUtils.Unpacker {
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	public void unpack(File src, File dest) throws IOException {
+		InputStream in = new FileInputStream(src);
+		try {
+			unpack(in, dest);
+		} finally {
+			in.close();
+		}
+	}
+
+	public void unpack(InputStream src, File dest) throws IOException {
 		int count;
-		byte[] buf = new byte[1024];
-		ZipInputStream zis = null;
+		byte[] buf = new byte[BUFFER_SIZE];
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(src, BUFFER_SIZE));
 		ZipEntry zipentry;
-		zis = new ZipInputStream(new FileInputStream(src));
 
 		while ((zipentry = zis.getNextEntry()) != null) {
 			String entryName = zipentry.getName();
@@ -40,17 +52,20 @@ public class ZipExtractor implements ModuleUtils.Unpacker {
 				throw new IOException("ZipExtractor.unpack(): unable to create directory");
 
 			if(zipentry.isDirectory()) {
-				if(!entryFile.mkdir())
+				if(!entryFile.isDirectory() && !entryFile.mkdir())
 					throw new IOException("ZipExtractor.unpack(): unable to create directory entry");					
 			} else {
 				FileOutputStream fos = new FileOutputStream(entryFile);             
-				while ((count = zis.read(buf, 0, 1024)) != -1)
-					fos.write(buf, 0, count);
-	
-				fos.close(); 
+				try {
+					while ((count = zis.read(buf, 0, BUFFER_SIZE)) != -1)
+						fos.write(buf, 0, count);
+				} finally {
+					fos.close(); 
+				}
 			}
 			zis.closeEntry();
 		}
+		/* releases the inflater; the caller's stream is closed with it */
 		zis.close();
 	}
 
@@ -19,8 +19,12 @@
 
 package org.webinos.android.wrt.channel;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.webinos.android.util.PipeTransport;
 import org.webinos.android.wrt.core.WidgetConfig;
 import org.webinos.android.wrt.renderer.WebView;
 
@@ -30,6 +34,8 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
+import android.webkit.JavascriptInterface;
 
 public class ClientSocket {
 	
@@ -37,113 +43,335 @@ public class ClientSocket {
     public static final String WEBINOSJS_ASSET = "js/webinos.js";
     private static final String TAG = "org.webinos.android.wrt.channel.ClientSocket";
 
+	/* maximum number of outbound messages held for a version 2 stream
+	 * that has no send credit */
+	private static final int MAX_PENDING_MESSAGES = 256;
+
+    private static final AtomicInteger nextStreamId = new AtomicInteger(ProtocolConstants.FIRST_STREAM_ID);
+
+    /* state of an open socket; flow control fields are used for version 2
+     * streams only and are guarded by the Stream */
+    private static class Stream {
+    	final int id;
+    	final int streamId;
+    	final int version;
+    	int sendCredit = ProtocolConstants.INITIAL_CREDIT;
+    	int sendSeq;
+    	int recvSeq;
+    	int consumed;
+    	final ArrayDeque<String> pending = new ArrayDeque<String>();
+    	Stream(int id, int streamId, int version) {
+    		this.id = id;
+    		this.streamId = streamId;
+    		this.version = version;
+    	}
+    }
+
     private final WebView webView;
 	private WidgetConfig widgetConfig;
 	private String instanceId;
 	private Session session;
     private Messenger incomingHandler = null;
-    private HashSet<String> ids = new HashSet<String>();
-
-    private static String escapeString(String text) {
-    	StringBuffer buf = new StringBuffer();
-    	for(int i = 0; i < text.length(); i++) {
-    		char c = text.charAt(i);
-    		switch(c) {
-    		case '\'':
-    			buf.append("\\\'");
-    			break;
-    		case '"':
-    			buf.append("\\\"");
-    			break;
-    		case '\\':
-    			buf.append("\\\\");
-    			break;
-    		case '\n':
-    			buf.append("\\n");
-    			break;
-    		case '\r':
-    			buf.append("\\r");
-    			break;
-    		case '\t':
-    			buf.append("\\t");
-    			break;
-    		default:
-    			buf.append(c);
-    		}
-    	}
-    	return buf.toString();
-    }
-    
-	public ClientSocket(WebView webView, WidgetConfig widgetConfig, String instanceId) {
+    /* open streams keyed by page socket id, and by channel stream id */
+    private final SparseArray<Stream> streams = new SparseArray<Stream>();
+    private final SparseArray<Stream> channelStreams = new SparseArray<Stream>();
+    /* sockets the page has opened whose connect waits for protocol negotiation */
+    private final HashSet<Integer> opening = new HashSet<Integer>();
+    private final DeliveryQueue deliveryQueue;
+    private final PageInterface pageInterface = new PageInterface(this);
+
+	/**
+	 * The object exported to the page as the __webinos interface. Before
+	 * API level 17 the page can call every public method of an exported
+	 * object, so only the page's socket operations are exposed here and
+	 * the control methods stay on ClientSocket.
+	 */
+	public static class PageInterface {
+		private final ClientSocket socket;
+
+		private PageInterface(ClientSocket socket) {
+			this.socket = socket;
+		}
+
+		@JavascriptInterface
+		public void openSocket(int id) {
+			socket.openSocket(id);
+		}
+
+		@JavascriptInterface
+		public void closeSocket(int id) {
+			socket.closeSocket(id);
+		}
+
+		@JavascriptInterface
+		public boolean send(int id, String message) {
+			return socket.send(id, message);
+		}
+	}
+
+	/* creates an unbound socket; bind() must be called before the page
+	 * attempts to open a socket */
+	public ClientSocket(WebView webView) {
 		this.webView = webView;
+		session = Session.getSession();
+		deliveryQueue = new DeliveryQueue(webView, new DeliveryQueue.DeliveryListener() {
+			public void onDelivered(int id, int count) {
+				returnCredit(id, count);
+			}
+		});
+	}
+
+	public ClientSocket(WebView webView, WidgetConfig widgetConfig, String instanceId) {
+		this(webView);
+		bind(widgetConfig, instanceId);
+	}
+
+	/* the object to export to the page with addJavascriptInterface */
+	public PageInterface getPageInterface() {
+		return pageInterface;
+	}
+
+	public void bind(WidgetConfig widgetConfig, String instanceId) {
 		this.widgetConfig = widgetConfig;
 		this.instanceId = instanceId;
-		session = Session.getSession();
 	}
 
 	public void dispose() {
-		for(String id : ids)
-			closeSocket(Integer.parseInt(id));
+		int[] ids;
+		synchronized(streams) {
+			opening.clear();
+			ids = new int[streams.size()];
+			for(int i = 0; i < ids.length; i++)
+				ids[i] = streams.keyAt(i);
+		}
+		for(int id : ids)
+			closeSocket(id);
+		deliveryQueue.clear();
+		widgetConfig = null;
+		instanceId = null;
+	}
+
+	/* returns delivery queue depth and drop counters as a JSON string */
+	public String getQueueStats() {
+		return deliveryQueue.getStats();
+	}
+
+	private Stream getStream(int id) {
+		synchronized(streams) {
+			return streams.get(id);
+		}
 	}
 
-	public void openSocket(final int id) {
+	private Stream getChannelStream(int streamId) {
+		synchronized(streams) {
+			return channelStreams.get(streamId);
+		}
+	}
+
+	private void openSocket(final int id) {
     	Log.v(TAG, "openSocket()");
+    	if(widgetConfig == null)
+    		throw new RuntimeException("Attempt to open socket before bind");
+    	session = Session.getSession();
     	session.checkState();
-    	incomingHandler = new Messenger(new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-            	Log.v(TAG, "handleMessage: msg: " + msg.toString());
-                switch (ProtocolConstants.whatToMsg(msg.what)) {
-                case ProtocolConstants.MSG_DISCONNECT:
-                	Log.v(TAG, "IncomingHandler: disconnect");
-                	break;
-                case ProtocolConstants.MSG_DATA:
-                	Log.v(TAG, "IncomingHandler: data");
-                	String data = ((Bundle)msg.obj).getString("data");
-                	Log.v(TAG, "IncomingHander: data: " + data);
-                	int id = ProtocolConstants.whatToId(msg.what);
-                    webView.callScript("WebinosSocket.handleMessage(" + id + ", '" +  escapeString(data) + "');");
-                	break;
-               default:
-                    super.handleMessage(msg);
-                }
-            	Log.v(TAG, "handleMessage: ret");
-            }
+    	if(incomingHandler == null) {
+	    	incomingHandler = new Messenger(new Handler(Session.getReplyLooper()) {
+	            @Override
+	            public void handleMessage(Message msg) {
+	            	if(ProtocolConstants.isFrame(msg.what)) {
+	            		handleFrame(msg);
+	            		return;
+	            	}
+	                switch (ProtocolConstants.whatToMsg(msg.what)) {
+	                case ProtocolConstants.MSG_DISCONNECT:
+	                	Log.v(TAG, "IncomingHandler: disconnect");
+	                	break;
+	                case ProtocolConstants.MSG_DATA:
+	                	deliver(ProtocolConstants.whatToId(msg.what), (Bundle)msg.obj);
+	                	break;
+	               default:
+	                    super.handleMessage(msg);
+	                }
+	            }
+	    	});
+    	}
+    	synchronized(streams) {
+    		opening.add(id);
+    	}
+    	session.whenNegotiated(new Runnable() {
+    		public void run() {
+    			connect(id);
+    		}
     	});
+	}
 
+	private void connect(int id) {
+		synchronized(streams) {
+			/* closed before negotiation completed */
+			if(!opening.remove(id))
+				return;
+		}
         try {
         	Log.v(TAG, "sending connect message");
         	Bundle clientDetails = new Bundle();
         	clientDetails.putString("instanceId", instanceId);
         	clientDetails.putString("installId", widgetConfig.getInstallId());
-            Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_CONNECT, id), clientDetails);
+        	Stream stream;
+        	Message msg;
+        	if(session.getVersion() >= ProtocolConstants.VERSION_2) {
+        		stream = new Stream(id, nextStreamId.getAndIncrement(), ProtocolConstants.VERSION_2);
+        		msg = Message.obtain(null, ProtocolConstants.toFrameWhat(ProtocolConstants.MSG_CONNECT, 0), stream.streamId, 0, clientDetails);
+        	} else {
+        		stream = new Stream(id, id, ProtocolConstants.VERSION_1);
+        		msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_CONNECT, id), clientDetails);
+        	}
+        	synchronized(streams) {
+        		streams.put(stream.id, stream);
+        		channelStreams.put(stream.streamId, stream);
+        	}
             session.send(msg, incomingHandler);
-            ids.add(String.valueOf(id));
             webView.callScript("WebinosSocket.handleConnect(" + id + ");");
         } catch (RemoteException e) {
-        	throw new RuntimeException("Exception opening socket", e);
+        	Log.v(TAG, "Exception opening socket: " + e);
+        	synchronized(streams) {
+        		Stream stream = streams.get(id);
+        		streams.remove(id);
+        		if(stream != null)
+        			channelStreams.remove(stream.streamId);
+        	}
+        	webView.callScript("WebinosSocket.handleDisconnect(" + id + ");");
         }
 	}
 
-	public void closeSocket(int id) {
+	private void handleFrame(Message msg) {
+		Stream stream = getChannelStream(msg.arg1);
+		if(stream == null) {
+			/* closed; release any piped payload so that its writer finishes */
+			if(msg.obj instanceof Bundle)
+				PipeTransport.release((Bundle)msg.obj);
+			return;
+		}
+		switch(ProtocolConstants.frameToMsg(msg.what)) {
+		case ProtocolConstants.MSG_DATA:
+			if(msg.arg2 != stream.recvSeq)
+				Log.w(TAG, "stream " + stream.streamId + ": expected sequence " + stream.recvSeq + ", received " + msg.arg2);
+			stream.recvSeq = msg.arg2 + 1;
+			deliver(stream.id, (Bundle)msg.obj);
+			break;
+		case ProtocolConstants.MSG_CREDIT:
+			synchronized(stream) {
+				stream.sendCredit += msg.arg2;
+				while(stream.sendCredit > 0 && !stream.pending.isEmpty()) {
+					--stream.sendCredit;
+					sendFrame(stream, stream.pending.poll());
+				}
+			}
+			break;
+		}
+	}
+
+	private void deliver(int id, Bundle bundle) {
+		try {
+			deliveryQueue.enqueue(id, PipeTransport.unpack(bundle));
+		} catch(IOException e) {
+			Log.v(TAG, "IncomingHandler: unable to read message data; exception: " + e);
+		}
+	}
+
+	/* credit for version 2 streams is returned once messages have been
+	 * delivered to the page, so a slow page throttles the server */
+	private void returnCredit(int id, int count) {
+		Stream stream = getStream(id);
+		if(stream == null || stream.version < ProtocolConstants.VERSION_2)
+			return;
+		int credit;
+		synchronized(stream) {
+			stream.consumed += count;
+			if(stream.consumed < ProtocolConstants.CREDIT_BATCH)
+				return;
+			credit = stream.consumed;
+			stream.consumed = 0;
+		}
+		try {
+			Message msg = Message.obtain(null, ProtocolConstants.toFrameWhat(ProtocolConstants.MSG_CREDIT, 0), stream.streamId, credit);
+			session.send(msg, incomingHandler);
+		} catch (RemoteException e) {
+			Log.v(TAG, "Exception returning credit: " + e);
+		}
+	}
+
+	private void closeSocket(int id) {
 		session.checkState();
+		deliveryQueue.discard(id);
+		Stream stream;
+		synchronized(streams) {
+			if(opening.remove(id))
+				return;
+			stream = streams.get(id);
+			streams.remove(id);
+			if(stream != null)
+				channelStreams.remove(stream.streamId);
+		}
         try {
-            Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_DISCONNECT, id));
+        	Message msg;
+        	if(stream != null && stream.version >= ProtocolConstants.VERSION_2)
+        		msg = Message.obtain(null, ProtocolConstants.toFrameWhat(ProtocolConstants.MSG_DISCONNECT, 0), stream.streamId, 0);
+        	else
+        		msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_DISCONNECT, id));
             session.send(msg, null);
         } catch (RemoteException e) {
         	throw new RuntimeException("Exception closing socket", e);
         }
 	}
 
-	public void send(int id, String message) {
+	/* returns false if the message could not be accepted because the
+	 * server is not consuming messages on this socket */
+	private boolean send(int id, String message) {
 		session.checkState();
+		Stream stream = getStream(id);
+		if(stream == null || stream.version < ProtocolConstants.VERSION_2) {
+			send(ProtocolConstants.toWhat(ProtocolConstants.MSG_DATA, id), 0, 0, message);
+			return true;
+		}
+		synchronized(stream) {
+			if(stream.sendCredit > 0) {
+				--stream.sendCredit;
+				sendFrame(stream, message);
+				return true;
+			}
+			if(stream.pending.size() < MAX_PENDING_MESSAGES) {
+				stream.pending.add(message);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* must be called holding the stream lock, to preserve sequence order */
+	private void sendFrame(Stream stream, String message) {
+		send(ProtocolConstants.toFrameWhat(ProtocolConstants.MSG_DATA, 0), stream.streamId, stream.sendSeq++, message);
+	}
+
+	private void send(int what, int arg1, int arg2, String message) {
+        Bundle messageBundle = null;
         try {
-        	Bundle messageBundle = new Bundle();
-        	messageBundle.putString("data", message);
-            Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_DATA, id), messageBundle);
+        	/* only version 2 frames may carry a piped payload; a version 1
+        	 * server reads the payload from the "data" key only */
+        	if(ProtocolConstants.isFrame(what))
+        		messageBundle = PipeTransport.pack(message);
+        	else
+        		messageBundle = PipeTransport.packInline(message);
+        	if(messageBundle.containsKey(PipeTransport.KEY_FD))
+        		what = ProtocolConstants.toFrameWhat(ProtocolConstants.frameToMsg(what), ProtocolConstants.FLAG_PIPE);
+            Message msg = Message.obtain(null, what, arg1, arg2, messageBundle);
             session.send(msg, null);
         } catch (RemoteException e) {
         	throw new RuntimeException("Exception sending on socket", e);
+        } catch (IOException e) {
+        	throw new RuntimeException("Exception sending on socket", e);
+        } finally {
+        	if(messageBundle != null)
+        		PipeTransport.release(messageBundle);
         }
 	}
 }
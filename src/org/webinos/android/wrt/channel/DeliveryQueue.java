@@ -0,0 +1,199 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.android.wrt.channel;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.webinos.android.wrt.renderer.WebView;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Queues inbound socket messages for a single WebView and delivers them
+ * to the page in batches. Messages are queued per socket; at most one
+ * flush is pending at any time, so a burst of messages arriving within one
+ * delivery interval costs a single script evaluation on the UI thread.
+ */
+class DeliveryQueue {
+
+	interface DeliveryListener {
+		/* called on the UI thread after messages have been passed to the page */
+		public void onDelivered(int id, int count);
+	}
+
+	/* maximum number of undelivered messages held for any one socket;
+	 * when exceeded the oldest queued message is dropped */
+	static final int MAX_QUEUED_MESSAGES = 1024;
+
+	/* interval between the first queued message and its delivery */
+	static final long DELIVERY_INTERVAL_MS = 16;
+
+	private final WebView webView;
+	/* enqueue() is called on the channel thread; posting through a view
+	 * that is not attached is lost before API level 24, so flushes are
+	 * posted to the main looper directly */
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final DeliveryListener listener;
+	private final LinkedHashMap<Integer, ArrayDeque<String>> queues = new LinkedHashMap<Integer, ArrayDeque<String>>();
+	private boolean flushPending;
+
+	/* statistics */
+	private int depth;
+	private int maxDepth;
+	private long enqueued;
+	private long delivered;
+	private long dropped;
+	private long flushes;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	DeliveryQueue(WebView webView, DeliveryListener listener) {
+		this.webView = webView;
+		this.listener = listener;
+	}
+
+	synchronized void enqueue(int id, String data) {
+		ArrayDeque<String> queue = queues.get(id);
+		if(queue == null) {
+			queue = new ArrayDeque<String>();
+			queues.put(id, queue);
+		}
+		if(queue.size() == MAX_QUEUED_MESSAGES) {
+			queue.removeFirst();
+			--depth;
+			++dropped;
+		}
+		queue.addLast(data);
+		++enqueued;
+		if(++depth > maxDepth)
+			maxDepth = depth;
+		if(!flushPending) {
+			flushPending = true;
+			mainHandler.postDelayed(flushTask, DELIVERY_INTERVAL_MS);
+		}
+	}
+
+	synchronized void discard(int id) {
+		ArrayDeque<String> queue = queues.remove(id);
+		if(queue != null) {
+			depth -= queue.size();
+			dropped += queue.size();
+		}
+	}
+
+	synchronized void clear() {
+		mainHandler.removeCallbacks(flushTask);
+		flushPending = false;
+		dropped += depth;
+		depth = 0;
+		queues.clear();
+	}
+
+	synchronized String getStats() {
+		return "{\"depth\":" + depth
+			+ ",\"maxDepth\":" + maxDepth
+			+ ",\"enqueued\":" + enqueued
+			+ ",\"delivered\":" + delivered
+			+ ",\"dropped\":" + dropped
+			+ ",\"flushes\":" + flushes + '}';
+	}
+
+	private void flush() {
+		String script;
+		int[] ids, counts;
+		synchronized(this) {
+			flushPending = false;
+			if(depth == 0)
+				return;
+			StringBuilder buf = new StringBuilder("WebinosSocket.handleMessages([");
+			boolean first = true;
+			ids = new int[queues.size()];
+			counts = new int[ids.length];
+			int i = 0;
+			Iterator<Map.Entry<Integer, ArrayDeque<String>>> it = queues.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Integer, ArrayDeque<String>> entry = it.next();
+				int id = entry.getKey();
+				ids[i] = id;
+				counts[i++] = entry.getValue().size();
+				for(String data : entry.getValue()) {
+					if(!first) buf.append(',');
+					first = false;
+					buf.append('[').append(id).append(",'");
+					escapeString(buf, data);
+					buf.append("']");
+				}
+				it.remove();
+			}
+			buf.append("]);");
+			delivered += depth;
+			depth = 0;
+			++flushes;
+			script = buf.toString();
+		}
+		webView.runScript(script);
+		if(listener != null) {
+			for(int i = 0; i < ids.length; i++)
+				listener.onDelivered(ids[i], counts[i]);
+		}
+	}
+
+	static void escapeString(StringBuilder buf, String text) {
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch(c) {
+			case '\'':
+				buf.append("\\\'");
+				break;
+			case '"':
+				buf.append("\\\"");
+				break;
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			case '\u2028':
+				buf.append("\\u2028");
+				break;
+			case '\u2029':
+				buf.append("\\u2029");
+				break;
+			default:
+				buf.append(c);
+			}
+		}
+	}
+}
@@ -26,10 +26,44 @@ public class ProtocolConstants {
 	public static final int MSG_CONNECT    = 2;
 	public static final int MSG_DISCONNECT = 3;
 	public static final int MSG_DATA       = 4;
+	public static final int MSG_CREDIT     = 5;
+
+	/* MSG_DATA payloads are carried in a Bundle built by PipeTransport:
+	 * inline as a "data" String, or above PipeTransport.INLINE_THRESHOLD
+	 * as the read end of a pipe in "fd" with the payload size in "length" */
 
     /* Conversions to put both message type and client Id in the what field */
 	public static int toWhat(int msg) { return msg; }
 	public static int toWhat(int msg, int id) { return msg + (id << 16); }
 	public static int whatToMsg(int what) { return what & 0xffff; }
 	public static int whatToId(int what) { return what >> 16; }
+
+	/* Protocol versions. The client offers VERSION_2 in the arg1 field of
+	 * MSG_REGISTER; a server that supports it replies with a MSG_REGISTER
+	 * carrying VERSION_2 in arg1. Old clients send 0 and old servers do
+	 * not reply, so either side falls back to VERSION_1 framing. */
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+
+	/* Version 2 frames: the what field holds the message type, the
+	 * FRAME_V2 marker and the frame flags; arg1 holds the stream id and
+	 * arg2 the per-stream sequence number, or for MSG_CREDIT the number
+	 * of messages the sender of the frame may additionally accept. */
+	public static final int FRAME_V2 = 0x100;
+	public static final int FLAG_PIPE = 0x1; /* payload is carried in a pipe */
+
+	/* Flow control: each side of a stream may send INITIAL_CREDIT messages
+	 * before it must wait for MSG_CREDIT from the other; receivers return
+	 * credit in batches of CREDIT_BATCH as messages are consumed. */
+	public static final int INITIAL_CREDIT = 64;
+	public static final int CREDIT_BATCH   = INITIAL_CREDIT / 2;
+
+	/* Version 2 stream ids are allocated above the 16-bit range of
+	 * version 1 ids so that both can share one client table */
+	public static final int FIRST_STREAM_ID = 0x10000;
+
+	public static int toFrameWhat(int msg, int flags) { return msg | FRAME_V2 | (flags << 16); }
+	public static boolean isFrame(int what) { return (what & FRAME_V2) != 0; }
+	public static int frameToMsg(int what) { return what & 0xff; }
+	public static int frameToFlags(int what) { return what >>> 16; }
 }
@@ -19,13 +19,18 @@
 
 package org.webinos.android.wrt.channel;
 
+import java.util.ArrayList;
+
 import org.webinos.android.wrt.core.WrtManager;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
@@ -38,6 +43,15 @@ public class Session {
     private static boolean bound = false;
     private static boolean registered = false;
     private static Session currentSession;
+    private static volatile int version = ProtocolConstants.VERSION_1;
+    /* true once the server has replied to MSG_REGISTER, or has not replied
+     * within NEGOTIATION_TIMEOUT and so only supports version 1 */
+    private static boolean negotiated = false;
+    private static ArrayList<Runnable> awaitingNegotiation = new ArrayList<Runnable>();
+    private static final long NEGOTIATION_TIMEOUT = 1000;
+    private static Handler replyReceiver;
+    private static Messenger replyHandler;
+    private static HandlerThread replyThread;
 
     private static final String TAG = "org.webinos.android.wrt.channel.Session";
     
@@ -50,6 +64,19 @@ public class Session {
     	return currentSession;
     }
 
+    /**
+     * The looper on which messages from the server are handled. Socket
+     * traffic is kept off the main thread; delivery to a page is
+     * posted to the UI thread in batches by DeliveryQueue.
+     */
+    static synchronized Looper getReplyLooper() {
+    	if(replyThread == null) {
+    		replyThread = new HandlerThread("WebinosSocket replies");
+    		replyThread.start();
+    	}
+    	return replyThread.getLooper();
+    }
+
     public static synchronized void dispose() {
     	if(currentSession != null) {
     		currentSession.unbind();
@@ -58,15 +85,34 @@ public class Session {
     }
 
     void bind() {
+    	/* receives the server's response to protocol negotiation */
+    	replyReceiver = new Handler(getReplyLooper()) {
+    		@Override
+    		public void handleMessage(Message msg) {
+    			if(ProtocolConstants.whatToMsg(msg.what) == ProtocolConstants.MSG_REGISTER) {
+    				version = Math.min(msg.arg1, ProtocolConstants.VERSION_2);
+    				Log.v(TAG, "Session: negotiated protocol version " + version);
+    				completeNegotiation();
+    			}
+    		}
+    	};
+    	replyHandler = new Messenger(replyReceiver);
     	connection = new ServiceConnection() {
             public void onServiceConnected(ComponentName className, IBinder service) {
             	remoteService = new Messenger(service);
             	Log.v(TAG, "Session: onServiceConnected");
 
                 try {
-                    Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_REGISTER));
+                    Message msg = Message.obtain(null, ProtocolConstants.toWhat(ProtocolConstants.MSG_REGISTER), ProtocolConstants.VERSION_2, 0);
+                    msg.replyTo = replyHandler;
                     remoteService.send(msg);
                     registered = true;
+                    /* a version 1 server does not reply */
+                    replyReceiver.postDelayed(new Runnable() {
+                    	public void run() {
+                    		completeNegotiation();
+                    	}
+                    }, NEGOTIATION_TIMEOUT);
                 } catch (RemoteException e) {
                     /* In this case the service has crashed before we could even
                      * do anything with it; we can count on soon being
@@ -77,6 +123,7 @@ public class Session {
 
             public void onServiceDisconnected(ComponentName className) {
             	remoteService = null;
+            	resetNegotiation();
             	currentSession = null;
                 bound = false;
             }
@@ -97,6 +144,7 @@ public class Session {
                 } finally {
                 	registered = false;
                 	remoteService = null;
+                	resetNegotiation();
                 }
             }
 
@@ -114,6 +162,49 @@ public class Session {
 		}
 	}
 
+	/* the channel protocol version agreed with the server */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Run an action once the protocol version is known, so that a stream
+	 * opened while negotiation is in progress uses the negotiated version.
+	 * Deferred actions run on the reply looper.
+	 */
+	void whenNegotiated(Runnable action) {
+		synchronized(Session.class) {
+			if(!negotiated) {
+				awaitingNegotiation.add(action);
+				return;
+			}
+		}
+		action.run();
+	}
+
+	private static void completeNegotiation() {
+		ArrayList<Runnable> actions;
+		synchronized(Session.class) {
+			if(negotiated)
+				return;
+			negotiated = true;
+			actions = awaitingNegotiation;
+			awaitingNegotiation = new ArrayList<Runnable>();
+		}
+		for(Runnable action : actions)
+			action.run();
+	}
+
+	private static void resetNegotiation() {
+		/* a pending timeout belongs to the previous connection */
+		if(replyReceiver != null)
+			replyReceiver.removeCallbacksAndMessages(null);
+		synchronized(Session.class) {
+			negotiated = false;
+			version = ProtocolConstants.VERSION_1;
+		}
+	}
+
 	void send(Message msg, Messenger replyTo) throws RemoteException {
         msg.replyTo = (replyTo == null) ? remoteService : replyTo;
         remoteService.send(msg);
@@ -0,0 +1,201 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.android.wrt.core;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+
+import org.webinos.android.wrt.channel.ClientSocket;
+import org.webinos.android.wrt.renderer.WebView;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+import android.view.ViewGroup;
+
+/**
+ * A pool of pre-initialised WebViews, each with its settings applied and a
+ * ClientSocket already installed as the __webinos bridge. Pooled WebViews
+ * are created against the application context and are rebound to the
+ * launching activity on acquire. All methods must be called on the main
+ * thread.
+ */
+public class WebViewPool {
+	private static final String TAG = "org.webinos.android.wrt.core.WebViewPool";
+	private static final String BLANK_URL = "about:blank";
+
+	public static class Entry {
+		public final WebView webView;
+		public final ClientSocket socket;
+		private final MutableContextWrapper context;
+		private boolean pooled;
+
+		private Entry(Context appContext) {
+			context = new MutableContextWrapper(appContext);
+			webView = new WebView(context, null);
+			socket = new ClientSocket(webView);
+			webView.addJavascriptInterface(socket.getPageInterface(), "__webinos");
+		}
+
+		/* true if this entry was taken from the pool rather than created on demand */
+		public boolean isPooled() { return pooled; }
+	}
+
+	private final Context appContext;
+	private final int size;
+	private final ArrayDeque<Entry> idle = new ArrayDeque<Entry>();
+	/* released entries waiting for about:blank to load before they are pooled */
+	private final HashSet<Entry> scrubbing = new HashSet<Entry>();
+	private boolean refillPending;
+
+	/* statistics */
+	private int hits;
+	private int misses;
+	private final LaunchStats pooledLaunches = new LaunchStats();
+	private final LaunchStats unpooledLaunches = new LaunchStats();
+
+	private static class LaunchStats {
+		int count;
+		long total;
+		long min = Long.MAX_VALUE;
+		long max;
+		void add(long latency) {
+			++count;
+			total += latency;
+			if(latency < min) min = latency;
+			if(latency > max) max = latency;
+		}
+		void dump(PrintWriter writer, String label) {
+			if(count == 0) {
+				writer.println(label + ": none");
+				return;
+			}
+			writer.println(label + ": count=" + count + " mean=" + (total / count)
+					+ "ms min=" + min + "ms max=" + max + "ms");
+		}
+	}
+
+	private final MessageQueue.IdleHandler refiller = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			if(idle.size() + scrubbing.size() < size) {
+				idle.add(new Entry(appContext));
+				Log.v(TAG, "prewarmed WebView; pool size now " + idle.size());
+			}
+			refillPending = idle.size() + scrubbing.size() < size;
+			return refillPending;
+		}
+	};
+
+	WebViewPool(Context ctx, int size) {
+		this.appContext = ctx.getApplicationContext();
+		this.size = size;
+	}
+
+	/* fill the pool when the main thread is next idle */
+	void prewarm() {
+		if(!refillPending && idle.size() + scrubbing.size() < size) {
+			refillPending = true;
+			Looper.myQueue().addIdleHandler(refiller);
+		}
+	}
+
+	public Entry acquire(Activity activity) {
+		Entry entry = idle.poll();
+		if(entry != null) {
+			++hits;
+			entry.pooled = true;
+		} else {
+			++misses;
+			entry = new Entry(appContext);
+			entry.pooled = false;
+		}
+		entry.context.setBaseContext(activity);
+		prewarm();
+		return entry;
+	}
+
+	/* scrub a WebView released by a finishing activity and return it to
+	 * the pool, or destroy it if the pool is already full. The entry is
+	 * only pooled once about:blank has loaded, so that the history cleared
+	 * then no longer holds the previous widget's page */
+	public void release(final Entry entry) {
+		entry.socket.dispose();
+		final WebView webView = entry.webView;
+		ViewGroup parent = (ViewGroup)webView.getParent();
+		if(parent != null)
+			parent.removeView(webView);
+		webView.stopLoading();
+		webView.setWebChromeClient(null);
+		entry.context.setBaseContext(appContext);
+		if(idle.size() + scrubbing.size() >= size) {
+			webView.setWebViewClient(new android.webkit.WebViewClient());
+			webView.destroy();
+			return;
+		}
+		webView.clearCache(true);
+		webView.clearFormData();
+		webView.clearSslPreferences();
+		scrubbing.add(entry);
+		webView.setWebViewClient(new android.webkit.WebViewClient() {
+			@Override
+			public void onPageFinished(android.webkit.WebView view, String url) {
+				if(!BLANK_URL.equals(url) || !scrubbing.remove(entry))
+					return;
+				webView.setWebViewClient(new android.webkit.WebViewClient());
+				webView.clearHistory();
+				idle.add(entry);
+			}
+		});
+		webView.loadUrl(BLANK_URL);
+	}
+
+	public void recordLaunch(Entry entry, long latency) {
+		if(entry.pooled)
+			pooledLaunches.add(latency);
+		else
+			unpooledLaunches.add(latency);
+		Log.v(TAG, "launch latency: " + latency + "ms (" + (entry.pooled ? "pooled" : "unpooled") + ")");
+	}
+
+	void clear() {
+		if(refillPending) {
+			Looper.myQueue().removeIdleHandler(refiller);
+			refillPending = false;
+		}
+		for(Entry entry : idle)
+			entry.webView.destroy();
+		idle.clear();
+		for(Entry entry : scrubbing)
+			entry.webView.destroy();
+		scrubbing.clear();
+	}
+
+	void dump(PrintWriter writer) {
+		writer.println("WebView pool: size=" + size + " idle=" + idle.size() + " scrubbing=" + scrubbing.size()
+				+ " hits=" + hits + " misses=" + misses);
+		pooledLaunches.dump(writer, "  pooled launches");
+		unpooledLaunches.dump(writer, "  unpooled launches");
+	}
+}
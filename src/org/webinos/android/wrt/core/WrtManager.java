@@ -19,8 +19,10 @@
 
 package org.webinos.android.wrt.core;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -29,18 +31,36 @@ import org.webinos.android.wrt.channel.Session;
 import org.webinos.android.wrt.ui.RendererActivity;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.IBinder;
 import android.util.Log;
 
 public class WrtManager extends Service implements Iterable<RendererActivity> {
 	private static WrtManager theService;
 	private static final String TAG = "org.webinos.android.wrt.core.WrtManager";
+	private static final String POOL_SIZE_PROPERTY = "wrt.webview.pool.size";
+	private static final String DEFAULT_POOL_SIZE = "1";
 	
 	private HashMap<String, RendererActivity> activities = new HashMap<String, RendererActivity>();
+	private HashMap<String, WidgetConfig> widgetConfigs = new HashMap<String, WidgetConfig>();
+	/* incremented on each invalidation, so that a config parsed concurrently
+	 * with an invalidation is not cached */
+	private HashMap<String, Integer> configGenerations = new HashMap<String, Integer>();
     private static ArrayList<LaunchListener> listeners = new ArrayList<LaunchListener>();
     private static boolean started = false;
+    private WebViewPool webViewPool;
+
+	/* registered only while the WRT is running, so that widget changes
+	 * do not start the WRT process just to invalidate a cache */
+	private final BroadcastReceiver widgetChangedReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context ctx, Intent intent) {
+			invalidateWidgetConfig(intent.getStringExtra(WrtReceiver.ID));
+		}
+	};
     
 	public interface LaunchListener {
 		public void onLaunch(WrtManager service);
@@ -79,6 +99,8 @@ public class WrtManager extends Service implements Iterable<RendererActivity> {
 	public void onCreate() {
 		theService = this;
 		Config.init(this);
+		webViewPool = new WebViewPool(this, getPoolSize());
+		registerReceiver(widgetChangedReceiver, new IntentFilter(WrtReceiver.ACTION_WIDGET_CHANGED));
 		try {
 	        synchronized(listeners) {
 	        	theService = this;
@@ -90,11 +112,14 @@ public class WrtManager extends Service implements Iterable<RendererActivity> {
 		} catch(Throwable t) {
 			Log.v(TAG, "WrtManager.init: uable to bind to Webinos service; exception thrown", t);
 		}
+		webViewPool.prewarm();
 		super.onCreate();
 	}
 
     @Override
     public void onDestroy() {
+		unregisterReceiver(widgetChangedReceiver);
+		webViewPool.clear();
 		try {
 			Session.dispose();
 		} catch(Throwable t) {
@@ -116,8 +141,21 @@ public class WrtManager extends Service implements Iterable<RendererActivity> {
 	}
 
 	public WidgetConfig getWidgetConfig(String installId) {
+		Integer generation;
+		synchronized(widgetConfigs) {
+			WidgetConfig result = widgetConfigs.get(installId);
+			if(result != null)
+				return result;
+			generation = configGenerations.get(installId);
+		}
 		try {
-			return new WidgetConfig(getContentResolver(), installId);
+			WidgetConfig result = new WidgetConfig(getContentResolver(), installId);
+			synchronized(widgetConfigs) {
+				Integer current = configGenerations.get(installId);
+				if(current == null ? generation == null : current.equals(generation))
+					widgetConfigs.put(installId, result);
+			}
+			return result;
 		} catch(FileNotFoundException e) {
 			Log.v(TAG, "WrtManager.getWidgetConfig(): requested widget not found: " + installId, e);
 		} catch(IOException ioe) {
@@ -126,10 +164,47 @@ public class WrtManager extends Service implements Iterable<RendererActivity> {
 		return null;
 	}
 
+	/* called when a widget is updated or removed */
+	public void invalidateWidgetConfig(String installId) {
+		if(installId == null)
+			return;
+		synchronized(widgetConfigs) {
+			widgetConfigs.remove(installId);
+			Integer generation = configGenerations.get(installId);
+			configGenerations.put(installId, generation == null ? 1 : generation + 1);
+		}
+	}
+
+	private static int getPoolSize() {
+		String value = Config.getInstance().getProperty(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+		try {
+			return Math.max(Integer.parseInt(value.trim()), 0);
+		} catch(NumberFormatException e) {
+			Log.v(TAG, "Invalid " + POOL_SIZE_PROPERTY + ": " + value + "; using default");
+			return Integer.parseInt(DEFAULT_POOL_SIZE);
+		}
+	}
+
+	public WebViewPool getWebViewPool() {
+		return webViewPool;
+	}
+
 	public String getWrtDir() {
 		return Config.getInstance().getProperty("wrt.home");
 	}
 
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		writer.println("WrtManager: running instances=" + activities.size());
+		synchronized(this) {
+			for(RendererActivity activity : activities.values()) {
+				if(activity.getClientSocket() != null)
+					writer.println("  instance " + activity.instanceId + ": delivery queue " + activity.getClientSocket().getQueueStats());
+			}
+		}
+		webViewPool.dump(writer);
+	}
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		// TODO Auto-generated method stub
@@ -24,6 +24,7 @@ import org.webinos.android.wrt.ui.RendererActivity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class WrtReceiver extends BroadcastReceiver {
@@ -31,10 +32,14 @@ public class WrtReceiver extends BroadcastReceiver {
 	public static final String ACTION_START = "org.webinos.android.wrt.START";
 	public static final String ACTION_STOP = "org.webinos.android.wrt.STOP";
 	public static final String ACTION_STOPALL = "org.webinos.android.wrt.STOPALL";
+	/* received by WrtManager while it is running */
+	public static final String ACTION_WIDGET_CHANGED = "org.webinos.android.wrt.WIDGET_CHANGED";
 	public static final String CMD = "cmdline";
 	public static final String INST = "instance";
 	public static final String ID = "id";
 	public static final String OPTS = "options";
+	public static final String EVENT = "event";
+	public static final String LAUNCH_TIME = "launchTime";
 	
 	private static final String TAG = "org.webinos.android.wrt.core.WrtReceiver";
 	
@@ -61,6 +66,7 @@ public class WrtReceiver extends BroadcastReceiver {
 		}
 
 		if(ACTION_START.equals(action)) {
+			intent.putExtra(LAUNCH_TIME, SystemClock.elapsedRealtime());
 			intent.setClassName(ctx, RendererActivity.class.getName());
 			intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 			ctx.startActivity(intent);
@@ -70,11 +70,20 @@ public class WebView extends android.webkit.WebView {
 		try {
 			getHandler().post(new Runnable() {
 				public void run() {
-					loadUrl("javascript:(function(){" + script + "})()");
+					runScript(script);
 				}
 			});
 		} catch (Throwable t) {
 			Log.e(TAG, "Error in JavaScript callback", t);
 		}
 	}
+
+	/* evaluates the script immediately; must be called on the UI thread */
+	public void runScript(String script) {
+		try {
+			loadUrl("javascript:(function(){" + script + "})()");
+		} catch (Throwable t) {
+			Log.e(TAG, "Error in JavaScript callback", t);
+		}
+	}
 }
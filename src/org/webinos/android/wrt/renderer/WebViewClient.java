@@ -59,6 +59,7 @@ public class WebViewClient extends android.webkit.WebViewClient {
 	public void onPageFinished(android.webkit.WebView webView, String url) {
 		super.onPageFinished(webView, url);
 		Log.v(TAG,"onPage finished called");
+		activity.onPageFinished(url);
 		/* TEMPORARILY disabled - webinos.js is no too long to go in a String (!)
 		WebView wgtView = (WebView) webView;
 		try {
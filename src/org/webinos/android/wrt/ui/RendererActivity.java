@@ -21,6 +21,7 @@ package org.webinos.android.wrt.ui;
 
 import org.webinos.android.R;
 import org.webinos.android.wrt.channel.ClientSocket;
+import org.webinos.android.wrt.core.WebViewPool;
 import org.webinos.android.wrt.core.WidgetConfig;
 import org.webinos.android.wrt.core.WrtManager;
 import org.webinos.android.wrt.core.WrtReceiver;
@@ -30,7 +31,10 @@ import org.webinos.android.wrt.renderer.WebViewClient;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
 
 public class RendererActivity extends Activity implements WrtManager.LaunchListener {
 
@@ -40,10 +44,14 @@ public class RendererActivity extends Activity implements WrtManager.LaunchListe
 	private String installId;
 	public String instanceId;
 	private ClientSocket socket;
+	private WebViewPool.Entry renderer;
+	private long launchTime;
+	private boolean launched;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		launchTime = getIntent().getLongExtra(WrtReceiver.LAUNCH_TIME, SystemClock.elapsedRealtime());
 		setContentView(R.layout.wrt);
 
 		WrtManager wrtManager = WrtManager.getInstance(this, this);
@@ -76,12 +84,15 @@ public class RendererActivity extends Activity implements WrtManager.LaunchListe
 		}
 		instanceId = inst;
 
-		webView = (WebView) findViewById(R.id.webview);
+		/* take a WebView from the pool; its socket object is already injected */
+		renderer = WrtManager.getInstance().getWebViewPool().acquire(this);
+		webView = renderer.webView;
+		((ViewGroup) findViewById(R.id.renderer)).addView(webView,
+				new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
 		webView.setWebViewClient(new WebViewClient(this));
 		webView.setWebChromeClient(new WebChromeClient(this));
-		socket = new ClientSocket(webView, widgetConfig, instanceId);
-		/* Inject the socket object */
-		webView.addJavascriptInterface(socket, "__webinos");
+		socket = renderer.socket;
+		socket.bind(widgetConfig, instanceId);
 		/* Load the widget start document */
 		webView.loadUrl(widgetConfig.getStartUrl());
 
@@ -92,10 +103,20 @@ public class RendererActivity extends Activity implements WrtManager.LaunchListe
 		return socket;
 	}
 
+	public void onPageFinished(String url) {
+		if(!launched && renderer != null) {
+			launched = true;
+			WrtManager.getInstance().getWebViewPool().recordLaunch(renderer, SystemClock.elapsedRealtime() - launchTime);
+		}
+	}
+
 	@Override
 	public void onDestroy() {
-		if(socket != null)
-			socket.dispose();
+		if(renderer != null) {
+			/* disposes the socket and returns the WebView to the pool */
+			WrtManager.getInstance().getWebViewPool().release(renderer);
+			renderer = null;
+		}
 		super.onDestroy();
 	}
 }
\ No newline at end of file
@@ -22,5 +22,9 @@ package org.webinos.api;
 import org.meshpoint.anode.idl.Dictionary;
 
 public class File implements Dictionary {
-	String name;
+	public String name;
+	/* the MIME type of the content */
+	public String type;
+	/* a URI from which the content can be read when it is needed */
+	public String fullPath;
 }
@@ -0,0 +1,27 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*  
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+* Copyright 2011 Istituto Superiore Mario Boella (ISMB)
+******************************************************************************/
+
+package org.webinos.api.contact;
+
+import org.meshpoint.anode.idl.Dictionary;
+
+public class ContactChanges implements Dictionary {
+	public String[] added;
+	public String[] updated;
+	public String[] removed;
+}
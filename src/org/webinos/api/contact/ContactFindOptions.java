@@ -26,4 +26,7 @@ public class ContactFindOptions implements Dictionary {
 	public String filter;
     public Boolean multiple;
     public Date updatedSince;
+    /* if set, results are delivered in successive onSuccess calls of at most
+     * pageSize contacts; a page with fewer than pageSize contacts is the last */
+    public Integer pageSize;
 }
@@ -29,4 +29,7 @@ public abstract class ContactManager extends Base {
 	protected ContactManager() { super(classId); }
 
 	public abstract PendingOperation find(HashMap<String, String> fields, ContactFindCB successCB, ContactErrorCB errorCB, ContactFindOptions options);
+	public abstract PendingOperation getPhoto(String id, ContactPhotoCB successCB, ContactErrorCB errorCB);
+	public abstract long watchChanges(ContactChangeCB changeCB, ContactErrorCB errorCB);
+	public abstract void clearWatch(long id);
 }
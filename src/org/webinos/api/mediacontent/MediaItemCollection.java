@@ -4,6 +4,7 @@ import org.meshpoint.anode.idl.Dictionary;
 
 public class MediaItemCollection implements Dictionary {
   
+  /* the total number of items; each array holds only the items of its type */
   public int size;
   
   public MediaAudio[] audios;
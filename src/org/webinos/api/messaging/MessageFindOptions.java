@@ -0,0 +1,33 @@
+/*******************************************************************************
+*  Code contributed to the webinos project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Copyright 2011-2012 Paddy Byers
+*
+******************************************************************************/
+
+package org.webinos.api.messaging;
+
+import org.meshpoint.anode.idl.Dictionary;
+
+public class MessageFindOptions implements Dictionary {
+	/* the maximum number of messages to find, and the number of matching messages to skip */
+	public Integer count;
+	public Integer offset;
+	/* messages are found newest first unless ascending is true */
+	public Boolean ascending;
+	/* if set, results are delivered in successive onSuccess calls of at most
+	 * pageSize messages; a page with fewer than pageSize messages is the last */
+	public Integer pageSize;
+}
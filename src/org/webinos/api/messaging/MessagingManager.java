@@ -41,7 +41,7 @@ public abstract class MessagingManager extends Base {
 
 	public abstract Message createMessage(Integer type) throws DeviceAPIError;
 	public abstract PendingOperation sendMessage(MessageSendCallback successCallback, ErrorCallback errorCallback, Message message) throws DeviceAPIError;
-	public abstract PendingOperation findMessages(FindMessagesSuccessCallback successCallback, ErrorCallback errorCallback, MessageFilter filter) throws DeviceAPIError;
+	public abstract PendingOperation findMessages(FindMessagesSuccessCallback successCallback, ErrorCallback errorCallback, MessageFilter filter, MessageFindOptions options) throws DeviceAPIError;
 	public abstract int onSMS(OnIncomingMessage messageHandler) throws DeviceAPIError;
 	public abstract int onMMS(OnIncomingMessage messageHandler) throws DeviceAPIError;
 	public abstract int onEmail(OnIncomingMessage messageHandler) throws DeviceAPIError;